@@ -1,6 +1,7 @@
 plugins {
     java
     `maven-publish`
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.machinemc"
@@ -27,6 +28,11 @@ java {
     withSourcesJar()
 }
 
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+}
+
 publishing {
     repositories {
         maven {
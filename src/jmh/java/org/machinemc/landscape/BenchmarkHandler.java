@@ -0,0 +1,28 @@
+package org.machinemc.landscape;
+
+/**
+ * Landscape handler used by the benchmarks.
+ */
+public class BenchmarkHandler implements LandscapeHandler {
+
+    @Override
+    public String getDefaultType() {
+        return "minecraft:air";
+    }
+
+    @Override
+    public String getDefaultBiome() {
+        return "minecraft:plains";
+    }
+
+    @Override
+    public boolean isAutoSave() {
+        return false;
+    }
+
+    @Override
+    public int getAutoSaveLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.machinemc.landscape;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of reads of a single segment shared by multiple threads, each
+ * read gets the block, ticking state and NBT at a position of the segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+
+    private Landscape landscape;
+    private Segment segment;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+        private final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        landscape = Landscape.of(Files.createTempDirectory("landscape").toFile(), 0, 0, (short) 16, new BenchmarkHandler());
+        segment = landscape.loadSegment(0, 0, 0);
+        final SplittableRandom random = new SplittableRandom(0);
+        segment.setAllBlocks((x, y, z) -> "minecraft:block_" + random.nextInt(8));
+        for (int i = 0; i < 16; i++)
+            segment.setTicking(i, i, i, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        landscape.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean read1(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean read2(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean read4(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean read8(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean read16(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean read32(Cursor cursor) {
+        return read(cursor);
+    }
+
+    /**
+     * Reads of the segment while another thread changes its blocks.
+     */
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(7)
+    public boolean reader(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void writer(Cursor cursor) {
+        final int i = cursor.position++ & 4095;
+        segment.setBlock(i & 15, (i >> 4) & 15, i >> 8, "minecraft:block_" + cursor.random.nextInt(8));
+    }
+
+    private boolean read(Cursor cursor) {
+        final int i = cursor.position++ & 4095;
+        final int x = i & 15, y = (i >> 4) & 15, z = i >> 8;
+        return segment.getBlock(x, y, z) != null
+                & segment.isTicking(x, y, z)
+                & segment.getNBTIfPresent(x, y, z) == null;
+    }
+
+}
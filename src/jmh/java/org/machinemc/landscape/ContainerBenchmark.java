@@ -0,0 +1,95 @@
+package org.machinemc.landscape;
+
+import org.machinemc.landscape.containers.BigContainer;
+import org.machinemc.landscape.containers.SmallContainer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link WrapperContainer} operations under each of the backing containers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContainerBenchmark {
+
+    private static final int DIMENSION = 16;
+
+    /**
+     * Backing container of the benchmarked container, {@code single} for single value,
+     * {@code packed} for a packed container with the palette of given size
+     * and {@code small}/{@code big} for containers read from the legacy format.
+     */
+    @Param({"single", "packed", "small", "big"})
+    public String backing;
+
+    @Param({"4", "64", "300"})
+    public int paletteSize;
+
+    private WrapperContainer container;
+    private String[] values;
+    private int cursor;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        values = new String[paletteSize];
+        for (int i = 0; i < paletteSize; i++)
+            values[i] = "minecraft:block_" + i;
+
+        final SplittableRandom random = new SplittableRandom(0);
+        switch (backing) {
+            case "single" -> {
+                container = new WrapperContainer(DIMENSION, () -> "minecraft:air");
+                container.fill(values[0]);
+            }
+            case "packed" -> {
+                container = new WrapperContainer(DIMENSION, () -> "minecraft:air");
+                container.setAll((x, y, z) -> values[random.nextInt(paletteSize)]);
+            }
+            case "small" -> {
+                final SmallContainer small = new SmallContainer("minecraft:air", DIMENSION);
+                small.setAll((x, y, z) -> values[random.nextInt(Math.min(paletteSize, 256))]);
+                container = WrapperContainer.read(small.serialize(), DIMENSION, () -> "minecraft:air");
+            }
+            case "big" -> {
+                final BigContainer big = new BigContainer("minecraft:air", DIMENSION);
+                big.setAll((x, y, z) -> values[random.nextInt(paletteSize)]);
+                container = WrapperContainer.read(big.serialize(), DIMENSION, () -> "minecraft:air");
+            }
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    @Benchmark
+    public String get() {
+        final int i = cursor++ & 4095;
+        return container.get(i & 15, (i >> 4) & 15, i >> 8);
+    }
+
+    @Benchmark
+    public void set() {
+        final int i = cursor++;
+        container.set(i & 15, (i >> 4) & 15, (i >> 8) & 15, values[i % paletteSize]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void setAll() {
+        final int offset = cursor++;
+        container.setAll((x, y, z) -> values[(x + y + z + offset) % paletteSize]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void getAll(Blackhole blackhole) {
+        container.getAll((x, y, z, value) -> blackhole.consume(value));
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.machinemc.landscape;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of flushing changed segments to a Landscape file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+
+    @Param({"64", "256", "384"})
+    public short height;
+
+    /**
+     * Percentage of segments changed before each flush.
+     */
+    @Param({"1", "10", "100"})
+    public int dirty;
+
+    private Landscape landscape;
+    private int segments;
+    private final SplittableRandom random = new SplittableRandom(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        landscape = Landscape.of(Files.createTempDirectory("landscape").toFile(), 0, 0, height, new BenchmarkHandler());
+        segments = height / 16 * 256;
+        for (int i = 0; i < segments; i++) {
+            final Segment segment = landscape.loadSegment(i);
+            final int layers = random.nextInt(17);
+            segment.setAllBlocks((x, y, z) -> y < layers ? "minecraft:stone" : "minecraft:air");
+            segment.push();
+        }
+        landscape.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        landscape.close();
+    }
+
+    /**
+     * Changes and pushes {@link #dirty} percent of the segments.
+     */
+    @Setup(Level.Invocation)
+    public void change() throws IOException {
+        final int count = Math.max(1, segments * dirty / 100);
+        for (int i = 0; i < count; i++) {
+            final Segment segment = landscape.loadSegment(random.nextInt(segments));
+            segment.setBlock(random.nextInt(16), random.nextInt(16), random.nextInt(16), "minecraft:block_" + random.nextInt(64));
+            segment.push();
+        }
+    }
+
+    @Benchmark
+    public void flush() {
+        landscape.flush();
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.machinemc.landscape;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of loading segments from a Landscape file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+
+    private static final int WARM = 16; // number of segments kept loaded
+
+    @Param({"64", "384"})
+    public short height;
+
+    private Landscape landscape;
+    private int segments;
+    private int cursor;
+    private final Segment[] warm = new Segment[WARM];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        landscape = Landscape.of(Files.createTempDirectory("landscape").toFile(), 0, 0, height, new BenchmarkHandler());
+        segments = height / 16 * 256;
+        final SplittableRandom random = new SplittableRandom(0);
+        for (int i = 0; i < segments; i++) {
+            final Segment segment = landscape.loadSegment(i);
+            final int layers = random.nextInt(17);
+            segment.setAllBlocks((x, y, z) -> y < layers ? "minecraft:stone" : "minecraft:air");
+            segment.push();
+        }
+        landscape.flush();
+        for (int i = 0; i < WARM; i++)
+            warm[i] = landscape.loadSegment(i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        landscape.close();
+    }
+
+    /**
+     * Drops the cached segments so each cold load reads from the file.
+     */
+    @Setup(Level.Invocation)
+    public void dropCache() {
+        landscape.loaded = new SegmentCache(segments, 0, false);
+        for (int i = 0; i < WARM; i++)
+            landscape.loaded.put(i, warm[i]);
+    }
+
+    @Benchmark
+    public Segment loadCold() throws IOException {
+        return landscape.loadSegment(WARM + cursor++ % (segments - WARM));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Segment loadWarm() throws IOException {
+        return landscape.loadSegment(cursor++ % WARM);
+    }
+
+    @Benchmark
+    public Segment[] loadColumnCold() {
+        final int column = 1 + cursor++ % 255; // the first column contains warm segments
+        return landscape.loadColumn(column & 15, column >> 4);
+    }
+
+    @Benchmark
+    public Segment[] loadColumnCold1by1() {
+        final int column = 1 + cursor++ % 255;
+        final Segment[] loaded = new Segment[height / 16];
+        for (int y = 0; y < loaded.length; y++)
+            loaded[y] = landscape.loadSegment(column & 15, y, column >> 4);
+        return loaded;
+    }
+
+}
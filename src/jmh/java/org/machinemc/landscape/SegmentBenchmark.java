@@ -0,0 +1,102 @@
+package org.machinemc.landscape;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of segment serialization and decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+
+    /**
+     * Number of different block types in the segment.
+     */
+    @Param({"1", "8", "300"})
+    public int paletteSize;
+
+    private Landscape landscape;
+    private Segment segment;
+    private ByteBuffer serialized;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        landscape = Landscape.of(Files.createTempDirectory("landscape").toFile(), 0, 0, (short) 16, new BenchmarkHandler());
+        segment = landscape.loadSegment(0, 0, 0);
+        final SplittableRandom random = new SplittableRandom(0);
+        segment.setAllBlocks((x, y, z) -> "minecraft:block_" + random.nextInt(paletteSize));
+        segment.setAllBiomes((x, y, z) -> "minecraft:biome_" + random.nextInt(Math.min(paletteSize, 4)));
+        for (int i = 0; i < 16; i++)
+            segment.setTicking(i, i, i, true);
+        serialized = segment.serialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        landscape.close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getBlock() {
+        final int i = cursor++ & 4095;
+        return segment.getBlock(i & 15, (i >> 4) & 15, i >> 8);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int getBlockId() {
+        final int i = cursor++ & 4095;
+        return segment.getBlockId(i & 15, (i >> 4) & 15, i >> 8);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getBiome() {
+        final int i = cursor++ & 4095;
+        return segment.getBiome(i & 15, (i >> 4) & 15, i >> 8);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean isTicking() {
+        final int i = cursor++ & 4095;
+        return segment.isTicking(i & 15, (i >> 4) & 15, i >> 8);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        return segment.serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer serializeChangedTicking() {
+        final int i = cursor++ & 4095;
+        segment.setTicking(i & 15, (i >> 4) & 15, i >> 8, (i & 1) == 0);
+        return segment.serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer serializeChangedBlock() {
+        final int i = cursor++ & 4095;
+        segment.setBlock(i & 15, (i >> 4) & 15, i >> 8, "minecraft:block_" + (i % paletteSize));
+        return segment.serialize();
+    }
+
+    @Benchmark
+    public Segment decode() throws IOException {
+        return new Segment(landscape, 0, serialized.duplicate());
+    }
+
+}
@@ -0,0 +1,196 @@
+package org.machinemc.landscape;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves pushed segments of Landscape files in the background.
+ * <p>
+ * Landscape with auto save enabled is saved once the number of pushed segments
+ * reaches {@link LandscapeHandler#getAutoSaveLimit()} or once its oldest pushed
+ * segment is older than {@link LandscapeHandler#getAutoSaveInterval()}. The
+ * flushes run on the executor of the handler, number of concurrent flushes and
+ * number of written bytes per second are limited across all Landscape files, the
+ * limits of the handler of each Landscape are applied when its flush starts.
+ * <p>
+ * Landscapes that failed to save are retried with exponentially increasing delay.
+ */
+public final class AutoSaveScheduler {
+
+    public static final long TICK = 50; // interval in milliseconds between checks of the scheduled Landscapes
+    public static final long RETRY_DELAY = 1000; // delay in milliseconds before the first retry of a failed save
+    public static final long MAX_RETRY_DELAY = 60_000; // maximum delay in milliseconds between retries of a failed save
+
+    private static final AutoSaveScheduler GLOBAL = new AutoSaveScheduler();
+
+    private final Set<Landscape> scheduled = ConcurrentHashMap.newKeySet(); // landscapes with pushed segments
+    private final Set<Landscape> flushing = ConcurrentHashMap.newKeySet();
+    private final Map<Landscape, Failure> failures = new ConcurrentHashMap<>(); // landscapes that failed to save
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicBoolean tickRequested = new AtomicBoolean(); // whether a check outside the regular interval has been submitted
+    private final ScheduledExecutorService timer;
+
+    private long nextFlush; // System.nanoTime() at which the rate limit allows another flush, guarded by this
+
+    /**
+     * @return scheduler used by all Landscape files
+     */
+    public static AutoSaveScheduler global() {
+        return GLOBAL;
+    }
+
+    private AutoSaveScheduler() {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "landscape-autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of Landscape files that are being saved
+     */
+    public int getRunningFlushes() {
+        return running.get();
+    }
+
+    /**
+     * @return number of Landscape files waiting to be saved
+     */
+    public int getScheduled() {
+        return scheduled.size();
+    }
+
+    /**
+     * Schedules Landscape with pushed segments to be saved.
+     * @param landscape landscape
+     */
+    void schedule(Landscape landscape) {
+        scheduled.add(landscape);
+        // landscapes that reach the limit are saved without waiting for the next check
+        if(flushing.contains(landscape) || !landscape.isAutoSaveDue(System.nanoTime())) return;
+        if(tickRequested.compareAndSet(false, true))
+            timer.execute(this::tick);
+    }
+
+    /**
+     * Removes Landscape from the scheduled ones, used once the Landscape is closed.
+     * @param landscape landscape
+     */
+    void cancel(Landscape landscape) {
+        scheduled.remove(landscape);
+        failures.remove(landscape);
+    }
+
+    /**
+     * Starts flushes of scheduled Landscapes that are due, as long as the limits allow it.
+     */
+    private void tick() {
+        tickRequested.set(false);
+        try {
+            final long now = System.nanoTime();
+            for (Landscape landscape : scheduled) {
+                if(flushing.contains(landscape)) continue;
+                if(landscape.isClosed()) {
+                    cancel(landscape);
+                    continue;
+                }
+                if(!landscape.hasPushed()) { // saved in the meantime
+                    unschedule(landscape);
+                    continue;
+                }
+                final Failure failure = failures.get(landscape);
+                if(failure != null && now < failure.retryAt()) continue;
+                if(!landscape.isAutoSaveDue(now)) continue;
+                if(running.get() >= landscape.handler.getMaxConcurrentAutoSaves()) continue;
+                if(landscape.handler.getMaxAutoSaveBytesPerSecond() != 0) {
+                    synchronized (this) {
+                        if(now < nextFlush) continue;
+                    }
+                }
+
+                flushing.add(landscape);
+                running.incrementAndGet();
+                try {
+                    landscape.handler.getExecutor().execute(() -> flush(landscape));
+                } catch (RejectedExecutionException exception) {
+                    finished(landscape, 0, false);
+                    landscape.handler.onAutoSaveFailed(landscape, exception);
+                }
+            }
+        } catch (RuntimeException exception) {
+            // the timer stops if the task fails
+            Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), exception);
+        }
+    }
+
+    private void flush(Landscape landscape) {
+        long written = 0;
+        boolean saved = false;
+        try {
+            written = landscape.autoSave();
+            saved = true;
+        } catch (RuntimeException exception) {
+            landscape.handler.onAutoSaveFailed(landscape, exception);
+        } finally {
+            finished(landscape, written, saved);
+        }
+    }
+
+    /**
+     * Called once the flush of the Landscape has finished.
+     * @param landscape landscape
+     * @param written number of written bytes
+     * @param saved whether the flush has been successful
+     */
+    private void finished(Landscape landscape, long written, boolean saved) {
+        final long maxBytesPerSecond = landscape.handler.getMaxAutoSaveBytesPerSecond();
+        if(maxBytesPerSecond != 0) {
+            synchronized (this) {
+                nextFlush = Math.max(nextFlush, System.nanoTime()) + written * 1_000_000_000L / maxBytesPerSecond;
+            }
+        }
+        if(saved) {
+            failures.remove(landscape);
+        } else {
+            // failing Landscape is not saved again before the delay passes
+            final Failure previous = failures.get(landscape);
+            final int attempts = previous != null ? previous.attempts() + 1 : 1;
+            final long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempts - 1, 16));
+            failures.put(landscape, new Failure(attempts, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+        }
+        flushing.remove(landscape);
+        running.decrementAndGet();
+        unschedule(landscape);
+    }
+
+    /**
+     * Removes Landscape from the scheduled ones unless it has pushed segments.
+     * @param landscape landscape
+     */
+    private void unschedule(Landscape landscape) {
+        // removed first so segments pushed in the meantime always schedule the Landscape again
+        scheduled.remove(landscape);
+        if(landscape.hasPushed())
+            scheduled.add(landscape);
+        else
+            failures.remove(landscape);
+    }
+
+    /**
+     * Failed saves of a Landscape.
+     * @param attempts number of failed saves in a row
+     * @param retryAt System.nanoTime() before which the Landscape is not saved again
+     */
+    private record Failure(int attempts, long retryAt) {
+    }
+
+}
@@ -1,7 +1,9 @@
 package org.machinemc.landscape;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
@@ -22,6 +24,15 @@ public final class ByteChannelUtil {
         return fill(channel, distance);
     }
 
+    public static ByteBuffer read(FileChannel channel, long position, int distance) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(distance);
+        while (buf.hasRemaining()) {
+            if(channel.read(buf, position + buf.position()) == -1)
+                throw new EOFException();
+        }
+        return buf.rewind();
+    }
+
     public static byte read(ReadableByteChannel channel) throws IOException {
         return fill(channel, 1).get();
     }
@@ -0,0 +1,132 @@
+package org.machinemc.landscape;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codec used for segment data in Landscape files.
+ * <p>
+ * Id of the codec is saved together with each segment so segments compressed
+ * using different codecs can exist in the same file, ids from 0 to 15 are
+ * reserved for built-in codecs.
+ * @see LandscapeHandler#getCompression()
+ */
+public interface Compression {
+
+    /**
+     * Segment data are stored without compression.
+     */
+    Compression NONE = new Compression() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public ByteBuffer compress(ByteBuffer data) {
+            return data;
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) {
+            return data;
+        }
+    };
+
+    /**
+     * Segment data are compressed using deflate with the fastest compression level.
+     */
+    Compression DEFLATE = deflate(Deflater.BEST_SPEED);
+
+    /**
+     * Returns deflate compression with given compression level.
+     * @param level compression level
+     * @return deflate compression
+     * @see Deflater
+     */
+    static Compression deflate(int level) {
+        return new Compression() {
+            @Override
+            public int getId() {
+                return 1;
+            }
+
+            @Override
+            public ByteBuffer compress(ByteBuffer data) {
+                final int length = data.remaining();
+                final Deflater deflater = new Deflater(level);
+                try {
+                    deflater.setInput(data);
+                    deflater.finish();
+                    ByteArrayOutputStream os = new ByteArrayOutputStream(length / 2 + 16);
+                    byte[] chunk = new byte[8192];
+                    while (!deflater.finished()) {
+                        int written = deflater.deflate(chunk);
+                        os.write(chunk, 0, written);
+                    }
+                    byte[] compressed = os.toByteArray();
+                    return ByteBuffer.allocate(4 + compressed.length)
+                            .putInt(length)
+                            .put(compressed)
+                            .rewind();
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            @Override
+            public ByteBuffer decompress(ByteBuffer data) {
+                final ByteBuffer buf = ByteBuffer.allocate(data.getInt());
+                final Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data);
+                    while (buf.hasRemaining() && !inflater.finished()) {
+                        if(inflater.inflate(buf) == 0 && inflater.needsInput())
+                            throw new IllegalStateException("Segment data are truncated");
+                    }
+                } catch (DataFormatException exception) {
+                    throw new IllegalStateException(exception);
+                } finally {
+                    inflater.end();
+                }
+                return buf.rewind();
+            }
+        };
+    }
+
+    /**
+     * Returns built-in codec with given id.
+     * @param id id of the codec
+     * @return codec
+     */
+    static Compression byId(int id) {
+        return switch (id) {
+            case 0 -> NONE;
+            case 1 -> DEFLATE;
+            default -> throw new UnsupportedOperationException("Unknown compression codec with id " + id);
+        };
+    }
+
+    /**
+     * @return id of the codec saved in the Landscape file, between 0 and 255
+     */
+    int getId();
+
+    /**
+     * Compresses the data.
+     * @param data data to compress
+     * @return compressed data
+     */
+    ByteBuffer compress(ByteBuffer data);
+
+    /**
+     * Decompresses the data.
+     * @param data compressed data
+     * @return decompressed data
+     */
+    ByteBuffer decompress(ByteBuffer data);
+
+}
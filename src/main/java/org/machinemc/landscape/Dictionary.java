@@ -0,0 +1,115 @@
+package org.machinemc.landscape;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Region-wide dictionary of palette values of a Landscape file, containers
+ * of the segments save the values as varint ids of the dictionary.
+ * <p>
+ * Values are only ever added to the dictionary so ids of saved segments stay
+ * valid, values added since the last flush are saved together with the segments
+ * that use them. Dictionary is saved as varint number of values followed by
+ * the values as varint length prefixed UTF-8 bytes.
+ * <p>
+ * Loaded values are canonical instances of {@link ValuePool} so the
+ * dictionaries of all files share them.
+ */
+final class Dictionary implements PaletteCodec {
+
+    private final IdTable table = new IdTable();
+    private int saved; // number of values saved to the file, guarded by the flush lock of the Landscape
+
+    /**
+     * Reads saved dictionary.
+     * @param buf saved dictionary
+     * @return dictionary
+     */
+    static Dictionary load(ByteBuffer buf) throws IOException {
+        final Dictionary dictionary = new Dictionary();
+        final int count = readVarInt(buf);
+        for (int i = 0; i < count; i++) {
+            if(dictionary.getId(ValuePool.global().read(buf, readVarInt(buf))) != i)
+                throw new IOException("Dictionary contains duplicate values");
+        }
+        dictionary.saved = count;
+        return dictionary;
+    }
+
+    @Override
+    public void write(ByteBuf buf, String value) {
+        PalettedFormat.writeVarInt(buf, getId(value));
+    }
+
+    @Override
+    public String read(ByteBuffer buf) throws IOException {
+        final int id = readVarInt(buf);
+        final String value = table.getValue(id);
+        if(value == null) throw new IOException("Unknown palette value id " + id);
+        return value;
+    }
+
+    /**
+     * Returns id of given value, if the value is not in the dictionary yet,
+     * it is added.
+     * @param value value
+     * @return id of the value
+     */
+    int getId(String value) {
+        return table.getId(value);
+    }
+
+    /**
+     * @return number of values in the dictionary
+     */
+    int size() {
+        return table.size();
+    }
+
+    /**
+     * @return number of values saved to the file
+     */
+    int getSaved() {
+        return saved;
+    }
+
+    /**
+     * Marks values of the dictionary as saved.
+     * @param saved number of saved values
+     */
+    void saved(int saved) {
+        this.saved = saved;
+    }
+
+    /**
+     * @param count number of values to serialize
+     * @return first values of the dictionary serialized
+     */
+    ByteBuffer serialize(int count) {
+        final ByteBuf unpooled = Unpooled.buffer();
+        PalettedFormat.writeVarInt(unpooled, count);
+        for (int i = 0; i < count; i++) {
+            final byte[] utf = table.getValue(i).getBytes(StandardCharsets.UTF_8);
+            PalettedFormat.writeVarInt(unpooled, utf.length);
+            unpooled.writeBytes(utf);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(unpooled.writerIndex());
+        unpooled.readBytes(buf);
+        return buf.rewind();
+    }
+
+    private static int readVarInt(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte part = buf.get();
+            value |= (part & 0x7F) << shift;
+            if((part & 0x80) == 0) return value;
+        }
+        throw new IOException("VarInt is too big");
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.machinemc.landscape;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table assigning integer ids to values in order of their addition starting at 0,
+ * values are only ever added.
+ * <p>
+ * Ids are looked up without locking, values are added under the lock of the table.
+ * @see ValueRegistry
+ * @see Dictionary
+ */
+final class IdTable {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private volatile int size;
+
+    /**
+     * Returns id of given value, if the value is not in the table yet,
+     * it is added.
+     * @param value value
+     * @return id of the value
+     */
+    int getId(String value) {
+        final Integer id = ids.get(value);
+        if(id != null) return id;
+        synchronized (this) {
+            final Integer added = ids.get(value);
+            if(added != null) return added;
+            String[] values = this.values;
+            if(size == values.length) {
+                String[] extended = new String[values.length * 2];
+                System.arraycopy(values, 0, extended, 0, values.length);
+                values = extended;
+            }
+            final int next = size;
+            values[next] = value;
+            this.values = values;
+            // size is published before the id so the id is always valid once visible
+            size = next + 1;
+            ids.put(value, next);
+            return next;
+        }
+    }
+
+    /**
+     * Returns value with given id.
+     * @param id id of the value
+     * @return value or null if there is no value with given id
+     */
+    @Nullable String getValue(int id) {
+        if(id < 0 || id >= size) return null;
+        return values[id];
+    }
+
+    /**
+     * @return number of values in the table
+     */
+    int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,200 @@
+package org.machinemc.landscape;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a Landscape file.
+ * <p>
+ * Changes of the look-up table are saved to the journal before they are
+ * applied to the Landscape file, if the application is interrupted the
+ * changes are applied again once the file is opened, journals that
+ * have not been completely saved are discarded.
+ * <p>
+ * Journal consists of int magic number, int number of entries, entries
+ * (int index, int position, int length, int payload length, payload) and
+ * long CRC32 checksum of everything before it, empty journal has no changes.
+ */
+final class Journal {
+
+    private static final int MAGIC = 0x4C534A31; // LSJ1
+    private static final int HEADER_SIZE = 8; // size of the header in bytes
+    private static final int ENTRY_SIZE = 16; // size of an entry without payload in bytes
+
+    private final File file;
+    private final ByteBuf entries = Unpooled.buffer(); // entries that haven't been applied yet
+    private int count;
+    private int committed; // number of entries saved to the file
+
+    /**
+     * @param file file of the journal
+     */
+    Journal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Adds new entry to the journal.
+     * @param index index of the segment
+     * @param position new position of the segment
+     * @param length new length of the segment, including the compression codec
+     * @param payload data that should be written at the position when the entry is applied
+     */
+    void add(int index, int position, int length, @Nullable ByteBuffer payload) {
+        entries.writeInt(index).writeInt(position).writeInt(length);
+        if(payload == null) {
+            entries.writeInt(0);
+        } else {
+            entries.writeInt(payload.remaining());
+            entries.writeBytes(payload.duplicate());
+        }
+        count++;
+    }
+
+    /**
+     * @return whether there are no entries in the journal
+     */
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return size of the entries in bytes
+     */
+    int size() {
+        return entries.readableBytes();
+    }
+
+    /**
+     * Saves the journal to the file, once this method returns the entries
+     * are applied even if the application is interrupted.
+     */
+    void commit() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + entries.readableBytes() + Long.BYTES);
+        buf.putInt(MAGIC).putInt(count);
+        entries.getBytes(entries.readerIndex(), buf.array(), HEADER_SIZE, entries.readableBytes());
+        buf.position(HEADER_SIZE + entries.readableBytes());
+        final CRC32 checksum = new CRC32();
+        checksum.update(buf.array(), 0, buf.position());
+        buf.putLong(checksum.getValue());
+        buf.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining())
+                channel.write(buf);
+            channel.force(true);
+        }
+        committed = count;
+    }
+
+    /**
+     * Removes entries added since the last commit, used when the changes
+     * of the entries couldn't be saved.
+     */
+    void discard() {
+        final ByteBuf buf = entries.duplicate();
+        for (int i = 0; i < committed; i++) {
+            buf.skipBytes(ENTRY_SIZE - Integer.BYTES);
+            buf.skipBytes(buf.readInt());
+        }
+        entries.writerIndex(buf.readerIndex());
+        count = committed;
+    }
+
+    /**
+     * Reads saved journal from the file.
+     * @param segments number of segments of the Landscape file
+     * @return whether the file contains complete journal with entries
+     */
+    boolean read(int segments) throws IOException {
+        entries.clear();
+        count = 0;
+        committed = 0;
+        if(!file.exists()) return false;
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if(buf.remaining() < HEADER_SIZE + Long.BYTES) return false;
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(buf.array(), 0, buf.limit() - Long.BYTES);
+        if(checksum.getValue() != buf.getLong(buf.limit() - Long.BYTES)) return false;
+        if(buf.getInt() != MAGIC) return false;
+
+        final int count = buf.getInt();
+        final ByteBuffer data = buf.slice(HEADER_SIZE, buf.limit() - HEADER_SIZE - Long.BYTES);
+        for (int i = 0; i < count; i++) {
+            if(data.remaining() < ENTRY_SIZE) return false;
+            final int index = data.getInt();
+            data.position(data.position() + Integer.BYTES * 2);
+            final int payload = data.getInt();
+            if(index < 0 || index >= segments || payload < 0 || payload > data.remaining()) return false;
+            data.position(data.position() + payload);
+        }
+        if(data.hasRemaining()) return false;
+
+        entries.writeBytes(data.flip());
+        this.count = count;
+        committed = count;
+        return count != 0;
+    }
+
+    /**
+     * Iterates over entries of the journal.
+     * @param consumer consumer of the entries
+     */
+    void forEach(EntryConsumer consumer) throws IOException {
+        final ByteBuf buf = entries.duplicate();
+        for (int i = 0; i < count; i++) {
+            final int index = buf.readInt();
+            final int position = buf.readInt();
+            final int length = buf.readInt();
+            final int payload = buf.readInt();
+            ByteBuffer data = null;
+            if(payload != 0) {
+                data = ByteBuffer.allocate(payload);
+                buf.readBytes(data);
+                data.flip();
+            }
+            consumer.accept(index, position, length, data);
+        }
+    }
+
+    /**
+     * Removes all entries from the journal and its file, should be called
+     * only after all entries have been applied.
+     */
+    void clear() throws IOException {
+        entries.clear();
+        count = 0;
+        committed = 0;
+        if(!file.exists()) return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if(channel.size() == 0) return;
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Deletes the file of the journal if it contains no entries.
+     */
+    void delete() throws IOException {
+        if(!isEmpty() || !file.exists() || file.length() != 0) return;
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(int index, int position, int length, @Nullable ByteBuffer payload) throws IOException;
+    }
+
+}
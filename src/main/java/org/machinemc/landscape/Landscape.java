@@ -5,12 +5,24 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 /**
  * Represents a region file container storing 16x16 area of Minecraft chunks in
@@ -22,14 +34,17 @@ import java.util.*;
  */
 public class Landscape {
 
-    public static final short VERSION = 1;
-
-    private final static Set<Landscape> cache = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    public static final short VERSION = 3;
+    static final short LEGACY_VERSION = 1; // bit sets of segments have length saved as byte
+    static final short UTF_PALETTE_VERSION = 2; // palette values are saved as UTF-8 instead of dictionary ids
 
+    final LandscapeRegistry registry;
     final File file;
-    SeekableByteChannel channel;
+    FileChannel channel;
+    private volatile boolean created; // whether the Landscape has been added to the registry
+    private volatile boolean closed; // whether the Landscape has been closed, closed Landscapes are not auto saved
 
-    final short version = VERSION;
+    short version = VERSION; // version of the file, files of older versions are migrated when opened
     final int x;
     final int y;
     final short height;
@@ -40,62 +55,85 @@ public class Landscape {
     final int Y_POINTER = 6;  // starts at byte 2
     final int HEIGHT_POINTER = 10; // starts at byte 10;
 
+    // containers of the default blocks and biomes shared by segments that haven't been changed
+    final WrapperContainer defaultBlocks;
+    final WrapperContainer defaultBiomes;
+
     Segment[] segments; // pushed segments
-    Map<Segment, Integer> weakSegments = new WeakHashMap<>(); // weakly referenced segments (not pushed) matched with their indices
+    SegmentCache loaded; // cached segments (not pushed) by their indices
     private int pushed; // counter for pushed segments
+    private long pushedSince; // System.nanoTime() of the first push since the last flush
 
     final int HEADER_SIZE = 12; // size of header in bytes
     final int TABLE_SIZE; // size of look up table in bytes
+    final int DICTIONARY_INDEX; // index of the dictionary in the look up table, the entry follows entries of all segments
     final int TABLE_ENTRY_SIZE = 8; // size of single entry in the look up table (int position, int length)
+    static final int COMPRESSION_SHIFT = 24; // highest byte of the length in look up table is id of the compression codec
+    static final int LENGTH_MASK = (1 << COMPRESSION_SHIFT) - 1;
+    static final int MAX_READ_GAP = SectorAllocator.SECTOR_SIZE; // maximum unused space between segments read at once
+    static final int MAX_READ_LENGTH = 1 << 20; // maximum number of bytes read at once when loading multiple segments
+    static final int PARALLEL_DECODE_LENGTH = 1 << 16; // minimum number of bytes of multiple segments to decode them in parallel
+    static final int MAX_JOURNAL_SIZE = 1 << 20; // number of bytes of segments moved during compaction at which the journal is applied
+    volatile int[] table; // look up table of the file, (position, length) pairs, never modified once published
+    SectorAllocator allocator; // free space in the data section of the file
+    private volatile long aligned; // free bytes left by the last compaction to align segments to sectors
+    final Journal journal; // changes of the look-up table that are being applied
+    Dictionary dictionary; // values of the container palettes, replaced only when the file is created or migrated
+    private volatile MappedByteBuffer mapped; // read-only mapping of the file if memory mapped reads are enabled
 
     private final Object lock = new Object();
+    private final Object flushLock = new Object(); // serializes flushes and compactions, acquired before the lock
+    private final ReadWriteLock io = new ReentrantReadWriteLock(); // prevents the channel from being closed or truncated while being read
+    private volatile long generation; // incremented each time data in the file might be overwritten
+
+    private final Map<Integer, CompletableFuture<Segment>> loading = new ConcurrentHashMap<>(); // asynchronous loads in progress
+    private final AtomicReference<CompletableFuture<Void>> pendingFlush = new AtomicReference<>(); // asynchronous flush that hasn't started yet
 
     public static Landscape of(File directory, int x, int y, LandscapeHandler handler) {
         return of(directory, x, y, (short) -1, handler);
     }
 
     public static Landscape of(File directory, int x, int y, short height, LandscapeHandler handler) {
-        try {
-            return of0(directory, x , y, height, handler);
-        } catch (IOException exception) {
-            throw new RuntimeException(exception);
-        }
-    }
-
-    private static Landscape of0(File directory, int x, int y, short height, LandscapeHandler handler) throws IOException {
-        final File file = new File(directory, "r_" + x + "_" + y + ".ls");
-        for(Landscape landscape : cache) {
-            if(landscape.file.equals(file)) return landscape;
-        }
-        return new Landscape(file, x, y, height, handler);
+        return LandscapeRegistry.of(directory).get(x, y, height, handler);
     }
 
-    private Landscape(@NotNull File source, int x, int y, short height, LandscapeHandler handler) throws IOException {
+    Landscape(LandscapeRegistry registry, @NotNull File source, int x, int y, short height, LandscapeHandler handler) throws IOException {
 
+        this.registry = registry;
         file = source;
+        journal = new Journal(new File(source.getPath() + ".journal"));
         openChannel();
+        try {
+            this.x = x;
+            this.y = y;
+            this.handler = handler;
+            defaultBlocks = new WrapperContainer(Segment.BLOCKS_DIMENSION, handler::getDefaultType);
+            defaultBiomes = new WrapperContainer(Segment.BIOMES_DIMENSION, handler::getDefaultBiome);
 
-        this.x = x;
-        this.y = y;
-        this.handler = handler;
-
-        if(height == -1) { // height should be read from the file
-            if(channel.size() < HEADER_SIZE)throw new IllegalStateException("Couldn't load " + file.getName() + " because it has invalid header");
-            channel.position(HEIGHT_POINTER);
-            this.height = ByteChannelUtil.readShort(channel);
-        } else {
-            if(height < 16 || height % 16 != 0)
-                throw new IllegalStateException("Couldn't load " + file.getName() + " because of invalid height - " + height);
-            this.height = height;
-        }
+            if(height == -1) { // height should be read from the file
+                if(channel.size() < HEADER_SIZE)throw new IllegalStateException("Couldn't load " + file.getName() + " because it has invalid header");
+                channel.position(HEIGHT_POINTER);
+                this.height = ByteChannelUtil.readShort(channel);
+            } else {
+                if(height < 16 || height % 16 != 0)
+                    throw new IllegalStateException("Couldn't load " + file.getName() + " because of invalid height - " + height);
+                this.height = height;
+            }
 
-        segments = new Segment[height / 16 * 16 * 16]; // amount of 16x16x16 segments in the whole file
-        TABLE_SIZE = segments.length * TABLE_ENTRY_SIZE; // each segment in look-up table contains 8 bytes - (int position, int length)
+            segments = new Segment[this.height / 16 * 16 * 16]; // amount of 16x16x16 segments in the whole file
+            DICTIONARY_INDEX = segments.length;
+            TABLE_SIZE = (segments.length + 1) * TABLE_ENTRY_SIZE; // each segment and the dictionary in look-up table contains 8 bytes - (int position, int length)
+            loaded = new SegmentCache(segments.length, handler.getSegmentCacheSize(), handler.isSoftCache());
 
-        if(channel.size() == 0) {
-            writeDefaults();
-        } else {
-            checkValidity();
+            if(channel.size() == 0) {
+                journal.clear(); // journal left behind by previously deleted file
+                writeDefaults();
+            } else {
+                checkValidity();
+            }
+        } catch (IOException | RuntimeException exception) {
+            channel.close(); // the Landscape is not registered yet so nothing else closes the channel
+            throw exception;
         }
     }
 
@@ -119,11 +157,78 @@ public class Landscape {
         return handler;
     }
 
+    public LandscapeRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return cache of segments loaded from this Landscape
+     */
+    public SegmentCache getCache() {
+        return loaded;
+    }
+
     public Segment loadSegment(int x, int y, int z) {
         try {
-            return loadSegment(segmentIndex(x, y, z));
+            return loadSegment(getSegmentIndex(x, y, z));
         } catch (IOException exception) {
             throw new RuntimeException(exception);
+        } finally {
+            registry.trim();
+        }
+    }
+
+    /**
+     * Loads segment of this Landscape asynchronously using the executor of the handler,
+     * concurrent loads of the same segment share the same future.
+     * @param x x coordinate of the segment
+     * @param y y coordinate of the segment
+     * @param z z coordinate of the segment
+     * @return future completed with the segment
+     * @see LandscapeHandler#getExecutor()
+     */
+    public CompletableFuture<Segment> loadSegmentAsync(int x, int y, int z) {
+        final int index = getSegmentIndex(x, y, z);
+        synchronized (lock) {
+            final Segment cached = getSegment(index);
+            if(cached != null) return CompletableFuture.completedFuture(cached);
+        }
+        final CompletableFuture<Segment> future = new CompletableFuture<>();
+        final CompletableFuture<Segment> existing = loading.putIfAbsent(index, future);
+        if(existing != null) return existing;
+        future.whenComplete((segment, throwable) -> loading.remove(index, future));
+        return submit(future, () -> loadSegment(x, y, z));
+    }
+
+    /**
+     * Loads all segments of a column of this Landscape.
+     * @param x x coordinate of the column
+     * @param z z coordinate of the column
+     * @return segments of the column ordered by their y coordinate
+     * @see #loadSegments(int...)
+     */
+    public Segment[] loadColumn(int x, int z) {
+        final int[] indices = new int[height / 16];
+        for (int y = 0; y < indices.length; y++)
+            indices[y] = getSegmentIndex(x, y, z);
+        return loadSegments(indices);
+    }
+
+    /**
+     * Loads multiple segments of this Landscape at once, data of segments
+     * that are close to each other in the file are read together and
+     * the segments are decoded in parallel.
+     * @param indices indices of the segments
+     * @return segments in the same order as the indices
+     * @see #getSegmentIndex(int, int, int)
+     */
+    public Segment[] loadSegments(int... indices) {
+        try {
+            return loadSegments0(indices);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            registry.trim();
         }
     }
 
@@ -135,113 +240,399 @@ public class Landscape {
             flush0();
         } catch (IOException exception) {
             throw new RuntimeException(exception);
+        } finally {
+            registry.trim();
         }
     }
 
-    private void flush0() throws IOException {
-        final Segment[] toFlush = new Segment[height / 16 * 16 * 16];
-        synchronized (lock) {
-            if (!channel.isOpen())
-                openChannel();
+    /**
+     * Pushes all loaded segments to the file asynchronously using the executor of
+     * the handler, flushes requested before the previous one started are merged.
+     * @return future completed once the segments are saved
+     * @see LandscapeHandler#getExecutor()
+     */
+    public CompletableFuture<Void> flushAsync() {
+        while (true) {
+            final CompletableFuture<Void> pending = pendingFlush.get();
+            if(pending != null) return pending;
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            if(!pendingFlush.compareAndSet(null, future)) continue;
+            future.whenComplete((result, throwable) -> pendingFlush.compareAndSet(future, null));
+            return submit(future, () -> {
+                pendingFlush.compareAndSet(future, null); // flushes requested from now on need to run again
+                flush();
+                return null;
+            });
+        }
+    }
 
-            if (weakSegments.size() == 0) {
-                boolean empty = true;
-                for (Segment segment : segments) {
-                    if(segment == null) continue;
-                    empty = false;
-                    break;
+    /**
+     * Pushes all loaded segments to the file.
+     * @return number of written bytes
+     */
+    private long flush0() throws IOException {
+        synchronized (flushLock) {
+            final Segment[] pushedSegments;
+            final Segment[] toFlush;
+            synchronized (lock) {
+                if (loaded.getSize() == 0) {
+                    boolean empty = true;
+                    for (Segment segment : segments) {
+                        if(segment == null) continue;
+                        empty = false;
+                        break;
+                    }
+                    if (empty) return 0; // there are no sections to push
                 }
-                if (empty) return; // there are no sections to push
+
+                // pushed segments stay referenced until they are saved so
+                // they are not loaded again from the file in the meantime
+                pushedSegments = segments.clone();
+                toFlush = segments.clone();
+                loaded.forEach(segment -> toFlush[segment.getIndex()] = segment);
             }
+            registry.touched(this);
 
-            System.arraycopy(segments, 0, toFlush, 0, segments.length);
+            // the lock is not held while the segments are written so segments
+            // can be loaded and pushed in the meantime
+            final long written = write(toFlush);
 
-            for (Map.Entry<Segment, Integer> weakEntry : weakSegments.entrySet())
-                toFlush[weakEntry.getValue()] = weakEntry.getKey();
+            synchronized (lock) {
+                pushed = 0;
+                for (int i = 0; i < segments.length; i++) {
+                    if(segments[i] == null) continue;
+                    // segments that have been modified during the flush stay pushed
+                    if(segments[i] == pushedSegments[i] && !segments[i].isModified()) {
+                        segments[i] = null;
+                        continue;
+                    }
+                    pushed++;
+                }
+                if(pushed != 0)
+                    pushedSince = System.nanoTime();
+            }
 
-            int startPos = 1; // index of first pushed segment
+            if(getFragmentation() > handler.getCompactionThreshold())
+                compact0();
+            return written;
+        }
+    }
+
+    /**
+     * Writes modified segments to the file, has to be called while holding the flush lock.
+     * @param toFlush segments to write by their indices
+     * @return number of written bytes
+     */
+    private long write(Segment[] toFlush) throws IOException {
+        while (true) {
+            io.readLock().lock();
+            try {
+                if (channel.isOpen())
+                    return write0(toFlush);
+            } finally {
+                io.readLock().unlock();
+            }
+            synchronized (lock) {
+                openChannel();
+            }
+        }
+    }
+
+    private long write0(Segment[] toFlush) throws IOException {
+        // segments are placed into free space of the file, the look-up
+        // table is updated only after all data has been written
+        final int[] updated = table.clone();
+        final int[] changed = new int[toFlush.length];
+        final int[] modifications = new int[toFlush.length];
+        final long[] freed = new long[(toFlush.length + 1) * 2]; // previous extents, freed once the changes are applied
+        final long[] allocated = new long[(toFlush.length + 1) * 2]; // new extents, freed if the changes can't be saved
+        int extents = 0;
+        int count = 0;
+        long written = 0;
+        int values = 0;
+        boolean dictionaryChanged = false;
+
+        try {
             for (int i = 0; i < toFlush.length; i++) {
-                if(toFlush[i] == null) continue;
-                startPos = i;
-                break;
+                final Segment segment = toFlush[i];
+                if(segment == null) continue;
+                modifications[i] = segment.getModifications();
+                if(!segment.isModified()) continue; // segment is already saved
+
+                // the data are written to free space so the segment stays readable from
+                // the file until the journal is saved, the previous space is not reused
+                final long previous = Integer.toUnsignedLong(updated[i * 2]);
+                freed[count * 2] = previous;
+                freed[count * 2 + 1] = updated[i * 2 + 1] & LENGTH_MASK;
+                final ByteBuffer pushed = encode(segment, i, updated);
+                final int length = pushed.remaining();
+                final long position = allocator.allocate(length);
+                allocated[extents * 2] = position;
+                allocated[extents++ * 2 + 1] = length;
+                write(pushed, position);
+
+                updated[i * 2] = (int) position;
+                journal.add(i, updated[i * 2], updated[i * 2 + 1], null);
+                changed[count++] = i;
+                written += length;
             }
 
-            // Temporary file to store data
-            SeekableByteChannel temp = Files.newByteChannel(
-                    Files.createTempFile("temp_r_" + x + "_" + y, ".ls"),
-                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE
-            );
+            if(count == 0) return 0;
 
-            // index of byte from where the segment data is updated,
-            // -1 if there isn't one
-            int touched = -1;
+            // values added to the dictionary by the written segments are saved together with them
+            values = dictionary.size();
+            dictionaryChanged = values != dictionary.getSaved();
+            if(dictionaryChanged) {
+                final ByteBuffer serialized = dictionary.serialize(values);
+                final int length = serialized.remaining();
+                final long previous = Integer.toUnsignedLong(updated[DICTIONARY_INDEX * 2]);
+                final long position = allocator.allocate(length);
+                allocated[extents * 2] = position;
+                allocated[extents++ * 2 + 1] = length;
+                write(serialized, position);
 
-            for (int i = startPos; i < toFlush.length; i++) {
+                freed[count * 2] = previous;
+                freed[count * 2 + 1] = updated[DICTIONARY_INDEX * 2 + 1] & LENGTH_MASK;
+                updated[DICTIONARY_INDEX * 2] = (int) position;
+                updated[DICTIONARY_INDEX * 2 + 1] = length;
+                journal.add(DICTIONARY_INDEX, updated[DICTIONARY_INDEX * 2], updated[DICTIONARY_INDEX * 2 + 1], null);
+                written += length;
+            }
+            channel.force(false);
+            journal.commit();
+        } catch (IOException | RuntimeException exception) {
+            // nothing has been saved, the look-up table stays the same and the new extents are free again
+            journal.discard();
+            for (int i = 0; i < extents; i++)
+                allocator.free(allocated[i * 2], (int) allocated[i * 2 + 1]);
+            throw exception;
+        }
 
-                final ByteBuffer original;
-                final Segment segment = toFlush[i];
+        // the table is published once the changes are saved, if they can't be applied to
+        // the file they stay in the journal and are applied again with the next commit
+        table = updated;
 
-                if (segment == null) {
-                    if(touched == -1) continue;
-                    original = readSegmentData(i);
-                    channel.position(HEADER_SIZE + (long) i * TABLE_ENTRY_SIZE);
-                    channel.write(ByteBuffer.allocate(TABLE_ENTRY_SIZE)
-                            .putInt((int) (touched + temp.position()))
-                            .putInt(original.capacity())
-                            .rewind());
-                    temp.write(original);
-                    continue;
-                }
+        generation++; // segments read from the previous extents are read again
+        for (int i = 0; i < count; i++) {
+            allocator.free(freed[i * 2], (int) freed[i * 2 + 1]);
+            toFlush[changed[i]].saved(modifications[changed[i]]);
+        }
+        if(dictionaryChanged) {
+            allocator.free(freed[count * 2], (int) freed[count * 2 + 1]);
+            dictionary.saved(values);
+        }
+        applyJournal();
+        return written;
+    }
 
-                final ByteBuffer pushed = segment.serialize();
+    /**
+     * Serializes the segment using the compression of the handler.
+     * @param segment segment
+     * @param index index of the segment
+     * @param table look-up table the length of the segment, including the compression codec, is saved to
+     * @return serialized segment
+     */
+    private ByteBuffer encode(Segment segment, int index, int[] table) throws IOException {
+        final ByteBuffer serialized = segment.serialize();
+        Compression compression = handler.getCompression();
+        ByteBuffer encoded = compression.compress(serialized);
+        if(encoded.remaining() >= serialized.capacity()) { // compression doesn't pay off
+            compression = Compression.NONE;
+            encoded = serialized.rewind();
+        }
+        final int length = encoded.remaining();
+        if(length > LENGTH_MASK)
+            throw new IllegalStateException("Segment " + index + " of " + file.getName() + " exceeds the maximum size");
+        table[index * 2 + 1] = compression.getId() << COMPRESSION_SHIFT | length;
+        return encoded;
+    }
 
-                if(touched == -1) {
+    /**
+     * Reclaims space of this Landscape file left behind by segments
+     * that have been appended to the end of the file during flush.
+     */
+    public void compact() {
+        try {
+            synchronized (flushLock) {
+                compact0();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            registry.trim();
+        }
+    }
 
-                    original = readSegmentData(i);
-                    channel.position(HEADER_SIZE + (long) i * TABLE_ENTRY_SIZE);
-                    final int position = ByteChannelUtil.readInt(channel);
+    /**
+     * Compacts the file, has to be called while holding the flush lock.
+     */
+    private void compact0() throws IOException {
+        while (true) {
+            io.writeLock().lock();
+            try {
+                if (channel.isOpen()) {
+                    compact1();
+                    return;
+                }
+            } finally {
+                io.writeLock().unlock();
+            }
+            synchronized (lock) {
+                openChannel();
+            }
+        }
+    }
 
-                    if(original.capacity() == pushed.capacity()) {
-                        channel.position(position);
-                        channel.write(pushed);
-                        continue;
-                    }
+    private void compact1() throws IOException {
+        generation++;
+        final int[] updated = table.clone();
 
-                    touched = position;
+        // moves each segment down to the end of the previous one, data is
+        // only ever moved towards the start of the file so no live segment
+        // is overwritten before it is moved itself, moved data are saved
+        // to the journal first as a segment can overlap its previous space
+        try {
+            long cursor = HEADER_SIZE + TABLE_SIZE;
+            for (int index : sortedByPosition()) {
+                final long position = Integer.toUnsignedLong(updated[index * 2]);
+                final int length = updated[index * 2 + 1] & LENGTH_MASK;
+                if(length == 0) continue; // segment without data
+                final long target = Math.min(SectorAllocator.place(cursor, length), position);
+                if (position != target) {
+                    ByteBuffer data = ByteChannelUtil.read(channel, position, length);
+                    updated[index * 2] = (int) target;
+                    journal.add(index, updated[index * 2], updated[index * 2 + 1], data);
+                    if(journal.size() >= MAX_JOURNAL_SIZE)
+                        commitJournal(updated);
                 }
+                cursor = target + length;
+            }
+            if(!journal.isEmpty())
+                commitJournal(updated);
+            mapped = null;
+            channel.truncate(cursor);
+            channel.force(false);
+        } finally {
+            // only moves of committed entries are part of the table
+            allocator.rebuild(table);
+        }
+        aligned = allocator.getFree();
+    }
+
+    /**
+     * @return indices of segments sorted by their position in the file
+     */
+    private int[] sortedByPosition() {
+        final int[] table = this.table;
+        final long[] order = new long[DICTIONARY_INDEX + 1];
+        for (int i = 0; i < order.length; i++) // sign bit is flipped so positions are sorted as unsigned
+            order[i] = (Integer.toUnsignedLong(table[i * 2]) << 32 | i) ^ Long.MIN_VALUE;
+        Arrays.sort(order);
+        final int[] indices = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            indices[i] = (int) order[i];
+        return indices;
+    }
 
-                channel.position(HEADER_SIZE + (long) i * TABLE_ENTRY_SIZE);
-                channel.write(ByteBuffer.allocate(TABLE_ENTRY_SIZE)
-                        .putInt((int) (touched + temp.position()))
-                        .putInt(pushed.capacity())
-                        .rewind()
-                );
-                temp.write(pushed);
+    /**
+     * Returns ratio of bytes in the data section of this Landscape file that can be
+     * reclaimed by compaction, space left by the last compaction to align segments
+     * to sectors is not counted.
+     * @return fragmentation of the file between 0 and 1
+     */
+    public double getFragmentation() {
+        synchronized (lock) {
+            long size;
+            try {
+                if (!channel.isOpen())
+                    openChannel();
+                size = channel.size();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
             }
+            final long dataSize = size - HEADER_SIZE - TABLE_SIZE;
+            if (dataSize <= 0) return 0;
+            final long unused = Math.max(allocator.getFree() - aligned, 0) + Math.max(size - allocator.getEnd(), 0);
+            return Math.min((double) unused / dataSize, 1);
+        }
+    }
 
-            if(touched != -1) {
-                channel.position(touched);
-                long size = temp.size();
-                long targetPos = channel.position() + size;
-                temp.position(0);
-                do {
-                    int allocated = size < 2000000000 ? (int) size : 2000000000; // not exceeding byte buffer limit just in case
-                    channel.write(ByteChannelUtil.read(temp, allocated));
-                } while (targetPos != channel.position());
-                channel.truncate(channel.position());
+    /**
+     * Closes the channel of this Landscape file asynchronously using
+     * the executor of the handler.
+     * @return future completed once the file is closed
+     * @see LandscapeHandler#getExecutor()
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return submit(new CompletableFuture<>(), () -> {
+            try {
+                close();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
             }
-            segments = new Segment[height / 16 * 16 * 16];
-            pushed = 0;
+            return null;
+        });
+    }
+
+    /**
+     * Runs the task using the executor of the handler.
+     * @param future future to complete with the result of the task
+     * @param task task
+     * @return the future
+     */
+    private <T> CompletableFuture<T> submit(CompletableFuture<T> future, Supplier<T> task) {
+        try {
+            handler.getExecutor().execute(() -> {
+                try {
+                    future.complete(task.get());
+                } catch (Throwable throwable) {
+                    future.completeExceptionally(throwable);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            future.completeExceptionally(exception);
         }
+        return future;
     }
 
     /**
-     * Closes the channel of this Landscape file.
+     * Closes the channel of this Landscape file, segments pushed to closed
+     * Landscape are not saved by the auto save until the file is used again.
      */
     public void close() throws IOException {
+        synchronized (flushLock) { // running flush would open the channel again
+            synchronized (lock) {
+                closed = true;
+                closeIdle();
+                journal.delete();
+                registry.closed(this);
+            }
+        }
+        if(handler.isAutoSave())
+            AutoSaveScheduler.global().cancel(this);
+    }
+
+    /**
+     * @return whether the Landscape has been closed and its channel hasn't been opened since
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the channel of this Landscape file without removing it from
+     * the registry, the channel is opened again once it is needed.
+     */
+    void closeIdle() throws IOException {
         synchronized (lock) {
             if(!channel.isOpen()) return;
-            channel.close();
+            io.writeLock().lock();
+            try {
+                mapped = null;
+                channel.close();
+            } finally {
+                io.writeLock().unlock();
+            }
         }
     }
 
@@ -251,13 +642,76 @@ public class Landscape {
      * @return loaded segment
      */
     protected Segment loadSegment(int index) throws IOException {
+        while (true) {
+            final long expected;
+            synchronized (lock) {
+                Segment cached = getSegment(index);
+                if(cached != null) return cached;
+                expected = generation;
+            }
+            registry.touched(this);
+
+            // the segment is read without holding the lock, in case the file
+            // has been modified in the meantime the segment is read again
+            Segment segment;
+            try {
+                segment = readSegment(index);
+            } catch (RuntimeException | IOException exception) {
+                if(generation != expected) continue;
+                throw exception;
+            }
+
+            synchronized (lock) {
+                Segment cached = segments[index] != null ? segments[index] : loaded.peek(index);
+                if(cached != null) return cached;
+                if(generation != expected) continue;
+                loaded.put(index, segment);
+                return segment;
+            }
+        }
+    }
+
+    private Segment[] loadSegments0(int[] indices) throws IOException {
+        final Segment[] result = new Segment[indices.length];
+        final int[] missing = new int[indices.length]; // positions of segments that are not cached
+        int count = 0;
+        final long expected;
         synchronized (lock) {
-            Segment cached = getSegment(index);
-            if(cached != null) return cached;
-            Segment segment = readSegment(index);
-            weakSegments.put(segment, index);
-            return segment;
+            for (int i = 0; i < indices.length; i++) {
+                result[i] = getSegment(indices[i]);
+                if(result[i] == null) missing[count++] = i;
+            }
+            expected = generation;
+        }
+        if(count == 0) return result;
+        registry.touched(this);
+
+        Segment[] read = null;
+        try {
+            read = readSegments(indices, missing, count);
+        } catch (RuntimeException | IOException exception) {
+            if(generation == expected) throw exception;
+        }
+
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                final int index = indices[missing[i]];
+                final Segment cached = segments[index] != null ? segments[index] : loaded.peek(index);
+                if(cached != null) {
+                    result[missing[i]] = cached;
+                } else if(read != null && generation == expected) {
+                    loaded.put(index, read[i]);
+                    result[missing[i]] = read[i];
+                }
+            }
         }
+
+        // the file has been modified in the meantime, segments are read again one by one
+        for (int i = 0; i < count; i++) {
+            if(result[missing[i]] == null)
+                result[missing[i]] = loadSegment(indices[missing[i]]);
+        }
+        return result;
     }
 
     /**
@@ -268,12 +722,7 @@ public class Landscape {
     private @Nullable Segment getSegment(int index) {
         if(segments[index] != null)
             return segments[index];
-        if(!weakSegments.containsValue(index)) return null;
-        for (Segment weak : weakSegments.keySet()) {
-            if(weakSegments.get(weak) == index)
-                return weak;
-        }
-        return null;
+        return loaded.get(index);
     }
 
     /**
@@ -282,23 +731,184 @@ public class Landscape {
      * @return segment
      */
     private Segment readSegment(int index) throws IOException {
-        return new Segment(this, index, readSegmentData(index));
+        while (true) {
+            io.readLock().lock();
+            try {
+                if (channel.isOpen()) {
+                    final int[] table = this.table;
+                    return decodeSegment(table, index, readSegmentData(table, index));
+                }
+            } finally {
+                io.readLock().unlock();
+            }
+            synchronized (lock) {
+                openChannel();
+            }
+        }
+    }
+
+    /**
+     * Reads multiple segments of this Landscape file.
+     * @param indices indices of the segments
+     * @param missing positions in the indices of the segments to read
+     * @param count number of segments to read
+     * @return segments in the same order as the positions
+     */
+    private Segment[] readSegments(int[] indices, int[] missing, int count) throws IOException {
+        while (true) {
+            io.readLock().lock();
+            try {
+                if (channel.isOpen()) {
+                    final int[] table = this.table;
+                    final ByteBuffer[] data = readSegmentsData(table, indices, missing, count);
+                    final Segment[] read = new Segment[count];
+                    long length = 0;
+                    for (ByteBuffer buf : data)
+                        length += buf.remaining();
+                    IntStream decode = IntStream.range(0, count);
+                    if(length >= PARALLEL_DECODE_LENGTH)
+                        decode = decode.parallel();
+                    try {
+                        decode.forEach(i -> {
+                            try {
+                                read[i] = decodeSegment(table, indices[missing[i]], data[i]);
+                            } catch (IOException exception) {
+                                throw new UncheckedIOException(exception);
+                            }
+                        });
+                    } catch (UncheckedIOException exception) {
+                        throw exception.getCause();
+                    }
+                    return read;
+                }
+            } finally {
+                io.readLock().unlock();
+            }
+            synchronized (lock) {
+                openChannel();
+            }
+        }
     }
 
     /**
-     * Reads data of segment of this Landscape file.
+     * Decodes segment of this Landscape file.
+     * @param table look-up table the data have been read with
+     * @param index index of the segment
+     * @param data segment data
+     * @return segment
+     */
+    private Segment decodeSegment(int[] table, int index, ByteBuffer data) throws IOException {
+        if(length(table, index) == 0) return new Segment(this, index); // segment has never been saved
+        final Compression compression = compression(table[index * 2 + 1] >>> COMPRESSION_SHIFT);
+        return new Segment(this, index, compression.decompress(data));
+    }
+
+    /**
+     * Reads data of segment of this Landscape file, the channel has to be open.
+     * @param table look-up table
      * @param index index of the segment
      * @return segment data
      */
-    private ByteBuffer readSegmentData(int index) throws IOException {
-        if(!channel.isOpen())
-            openChannel();
-        channel.position(HEADER_SIZE + (long) index * TABLE_ENTRY_SIZE);
-        ByteBuffer buf = ByteChannelUtil.read(channel, 8);
-        long position = Integer.toUnsignedLong(buf.getInt());
-        int length = buf.getInt();
-        channel.position(position);
-        return ByteChannelUtil.read(channel, length).rewind();
+    private ByteBuffer readSegmentData(int[] table, int index) throws IOException {
+        long position = Integer.toUnsignedLong(table[index * 2]);
+        int length = table[index * 2 + 1] & LENGTH_MASK;
+        if (length == 0) return ByteBuffer.allocate(0);
+        if (handler.isMemoryMapped()) {
+            final ByteBuffer map = map();
+            if (map != null) return map.slice((int) position, length);
+        }
+        return ByteChannelUtil.read(channel, position, length);
+    }
+
+    /**
+     * Reads data of multiple segments of this Landscape file, segments are
+     * sorted by their position and data of segments close to each other
+     * are read at once, the channel has to be open.
+     * @param table look-up table
+     * @param indices indices of the segments
+     * @param missing positions in the indices of the segments to read
+     * @param count number of segments to read
+     * @return data of the segments in the same order as the positions
+     */
+    private ByteBuffer[] readSegmentsData(int[] table, int[] indices, int[] missing, int count) throws IOException {
+        final ByteBuffer[] data = new ByteBuffer[count];
+        if (handler.isMemoryMapped()) {
+            final ByteBuffer map = map();
+            if (map != null) {
+                for (int i = 0; i < count; i++)
+                    data[i] = readSegmentData(table, indices[missing[i]]);
+                return data;
+            }
+        }
+
+        final long[] sorted = new long[count]; // position of the data << 31 | i
+        int saved = 0; // number of segments with data in the file
+        for (int i = 0; i < count; i++) {
+            if(length(table, indices[missing[i]]) == 0) {
+                data[i] = ByteBuffer.allocate(0);
+                continue;
+            }
+            sorted[saved++] = Integer.toUnsignedLong(table[indices[missing[i]] * 2]) << 31 | i;
+        }
+        Arrays.sort(sorted, 0, saved);
+
+        int from = 0;
+        while (from < saved) {
+            final long start = sorted[from] >>> 31;
+            long end = start + length(table, indices[missing[(int) (sorted[from] & Integer.MAX_VALUE)]]);
+            int to = from + 1;
+            while (to < saved) {
+                final long position = sorted[to] >>> 31;
+                final long next = position + length(table, indices[missing[(int) (sorted[to] & Integer.MAX_VALUE)]]);
+                if(position > end + MAX_READ_GAP || Math.max(end, next) - start > MAX_READ_LENGTH) break;
+                end = Math.max(end, next);
+                to++;
+            }
+
+            final ByteBuffer buf = ByteChannelUtil.read(channel, start, (int) (end - start));
+            for (int i = from; i < to; i++) {
+                final int segment = (int) (sorted[i] & Integer.MAX_VALUE);
+                final int offset = (int) ((sorted[i] >>> 31) - start);
+                data[segment] = buf.slice(offset, length(table, indices[missing[segment]]));
+            }
+            from = to;
+        }
+        return data;
+    }
+
+    /**
+     * @param table look-up table
+     * @param index index of the segment
+     * @return length of the segment data
+     */
+    private static int length(int[] table, int index) {
+        return table[index * 2 + 1] & LENGTH_MASK;
+    }
+
+    /**
+     * Returns compression codec with given id.
+     * @param id id of the codec
+     * @return codec
+     */
+    private Compression compression(int id) {
+        final Compression compression = handler.getCompression();
+        if(compression.getId() == id) return compression;
+        return Compression.byId(id);
+    }
+
+    /**
+     * Returns read-only mapping of this Landscape file, the mapping is created again
+     * if it doesn't cover the whole file.
+     * @return mapped file or null if the file is too large to be mapped
+     */
+    private @Nullable MappedByteBuffer map() throws IOException {
+        final long size = channel.size();
+        MappedByteBuffer mapped = this.mapped;
+        if(mapped != null && mapped.capacity() == size) return mapped;
+        if(size > Integer.MAX_VALUE) return null;
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        this.mapped = mapped;
+        return mapped;
     }
 
     /**
@@ -310,10 +920,51 @@ public class Landscape {
     protected void push(Segment segment, int index) {
         synchronized (lock) {
             segments[index] = segment;
-            pushed++;
-            if(!handler.isAutoSave()) return;
-            if(pushed >= handler.getAutoSaveLimit())
-                flush();
+            if(pushed++ == 0)
+                pushedSince = System.nanoTime();
+        }
+        if(handler.isAutoSave())
+            AutoSaveScheduler.global().schedule(this);
+    }
+
+    /**
+     * @return whether there are segments pushed since the last flush
+     */
+    boolean hasPushed() {
+        synchronized (lock) {
+            return pushed != 0;
+        }
+    }
+
+    /**
+     * @param now current {@link System#nanoTime()}
+     * @return whether the Landscape should be saved by the auto save
+     * @see AutoSaveScheduler
+     */
+    boolean isAutoSaveDue(long now) {
+        synchronized (lock) {
+            if(pushed == 0) return false;
+            if(pushed >= handler.getAutoSaveLimit()) return true;
+            final long interval = handler.getAutoSaveInterval();
+            return interval > 0 && now - pushedSince >= TimeUnit.MILLISECONDS.toNanos(interval);
+        }
+    }
+
+    /**
+     * Pushes all loaded segments to the file, used by the auto save.
+     * @return number of written bytes
+     * @see AutoSaveScheduler
+     */
+    long autoSave() {
+        try {
+            synchronized (flushLock) {
+                if(closed) return 0; // closed while the auto save was waiting
+                return flush0();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            registry.trim();
         }
     }
 
@@ -323,40 +974,127 @@ public class Landscape {
     private void writeHeader() throws IOException {
         if(!channel.isOpen())
             openChannel();
-        channel.position(0);
-        channel.write(
-                ByteBuffer.allocate(12)
-                        .putShort(VERSION)
-                        .putInt(x)
-                        .putInt(y)
-                        .putShort(height)
-                        .rewind()
-        );
+        write(header(), 0);
+    }
+
+    /**
+     * @return header of the Landscape file
+     */
+    private ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .putShort(VERSION)
+                .putInt(x)
+                .putInt(y)
+                .putShort(height)
+                .rewind();
     }
 
     /**
-     * Writes empty segments to the file.
+     * Writes header and empty look-up table to the file, segments
+     * with length 0 in the look-up table have never been saved.
      */
     private void writeDefaults() throws IOException {
         writeHeader();
+        write(ByteBuffer.allocate(TABLE_SIZE), HEADER_SIZE);
+        this.table = new int[TABLE_SIZE / Integer.BYTES];
+        dictionary = new Dictionary();
+        allocator = new SectorAllocator(HEADER_SIZE + TABLE_SIZE);
+        allocator.rebuild(table);
+    }
 
-        ByteBuffer empty = new Segment(this, 0).serialize();
-        final int size = empty.capacity();
-
-        channel.position(HEADER_SIZE + TABLE_SIZE);
-        for (int i = 0; i < segments.length; i++) {
-            channel.write(empty);
-            empty.rewind();
+    /**
+     * Reads the look-up table and the dictionary of the Landscape file.
+     * @param fileSegments number of segments in the file
+     */
+    private void readTable(int fileSegments) throws IOException {
+        if(!channel.isOpen())
+            openChannel();
+        final boolean hasDictionary = version > UTF_PALETTE_VERSION;
+        ByteBuffer buf = ByteChannelUtil.read(channel, HEADER_SIZE,
+                (fileSegments + (hasDictionary ? 1 : 0)) * TABLE_ENTRY_SIZE);
+        final int[] table = new int[TABLE_SIZE / Integer.BYTES];
+        for (int i = 0; i < Math.min(fileSegments, segments.length) * 2; i++)
+            table[i] = buf.getInt(i * Integer.BYTES);
+        if(hasDictionary) {
+            table[DICTIONARY_INDEX * 2] = buf.getInt(fileSegments * TABLE_ENTRY_SIZE);
+            table[DICTIONARY_INDEX * 2 + 1] = buf.getInt(fileSegments * TABLE_ENTRY_SIZE + Integer.BYTES);
         }
+        this.table = table;
+        allocator = new SectorAllocator(HEADER_SIZE + TABLE_SIZE);
+        allocator.rebuild(table);
+
+        final int length = length(table, DICTIONARY_INDEX);
+        dictionary = length == 0 ? new Dictionary() : Dictionary.load(
+                ByteChannelUtil.read(channel, Integer.toUnsignedLong(table[DICTIONARY_INDEX * 2]), length));
+    }
+
+    /**
+     * @return codec of the palette values of segments saved in the file
+     */
+    PaletteCodec getCodec() {
+        return version > UTF_PALETTE_VERSION ? dictionary : PaletteCodec.UTF;
+    }
+
+    /**
+     * Writes entry of the look-up table to the Landscape file.
+     * @param index index of the segment
+     * @param position position of the segment
+     * @param length length of the segment, including the compression codec
+     */
+    private void writeTableEntry(int index, int position, int length) throws IOException {
+        write(ByteBuffer.allocate(TABLE_ENTRY_SIZE)
+                .putInt(position)
+                .putInt(length)
+                .rewind(), HEADER_SIZE + (long) index * TABLE_ENTRY_SIZE);
+    }
 
-        channel.position(HEADER_SIZE);
-        for (int i = 0; i < segments.length; i++) {
-            channel.write(ByteBuffer.allocate(TABLE_ENTRY_SIZE)
-                    .putInt(HEADER_SIZE + TABLE_SIZE + empty.capacity() * i)
-                    .putInt(empty.capacity())
-                    .rewind()
-            );
+    /**
+     * Writes the data to the Landscape file.
+     * @param data data
+     * @param position position to write the data at
+     */
+    private void write(ByteBuffer data, long position) throws IOException {
+        write(channel, data, position);
+    }
+
+    /**
+     * Writes the data to the channel.
+     * @param channel channel
+     * @param data data
+     * @param position position to write the data at
+     */
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining())
+            position += channel.write(data, position);
+    }
+
+    /**
+     * Saves the journal, publishes the look-up table with its changes and applies
+     * them to the Landscape file, entries that can't be saved are discarded.
+     * @param updated look-up table with the changes of the journal
+     */
+    private void commitJournal(int[] updated) throws IOException {
+        try {
+            journal.commit();
+        } catch (IOException | RuntimeException exception) {
+            journal.discard();
+            throw exception;
         }
+        table = updated.clone();
+        applyJournal();
+    }
+
+    /**
+     * Applies changes saved in the journal to the Landscape file.
+     */
+    private void applyJournal() throws IOException {
+        journal.forEach((index, position, length, payload) -> {
+            if(payload != null)
+                write(payload, Integer.toUnsignedLong(position));
+            writeTableEntry(index, position, length);
+        });
+        channel.force(false);
+        journal.clear();
     }
 
     /**
@@ -368,24 +1106,97 @@ public class Landscape {
 
         channel.position(VERSION_POINTER);
         short fileVersion = ByteChannelUtil.readShort(channel);
-        if(version != fileVersion)
+        if(fileVersion < LEGACY_VERSION || fileVersion > VERSION)
             throw new UnsupportedOperationException("Couldn't load " + file.getName() + " because it has been saved using different landscape version");
+        version = fileVersion;
+
+        // changes of the look-up table that have not been completely applied
+        // before the file was closed are applied again, incomplete journal is discarded
+        channel.position(HEIGHT_POINTER);
+        final int fileSegments = ByteChannelUtil.readShort(channel) / 16 * 16 * 16;
+        if(journal.read(fileSegments + (version > UTF_PALETTE_VERSION ? 1 : 0)))
+            applyJournal();
+        else
+            journal.clear();
+
+        readTable(fileSegments);
 
         channel.position(HEIGHT_POINTER);
         short fileHeight = ByteChannelUtil.readShort(channel);
-        if(height != fileHeight) { // Height in file doesn't match the provided height when loading
-            final int maxY = Math.min(height, fileHeight) / 16;
-            for (int x = 0; x < 16; x++)
-                for (int z = 0; z < 16; z++)
-                    for (int y = 0; y < maxY; y++) {
-                        int index = segmentIndex(x, y ,z);
-                        segments[index] = loadSegment(index);
-                    }
-            channel.truncate(0);
-            writeDefaults();
-            flush();
+        // Height in file doesn't match the provided height when loading or the file
+        // has been saved using older version, all segments are read and saved again
+        if(height != fileHeight || version != VERSION)
+            migrate(fileHeight);
+
+    }
+
+    /**
+     * Saves all segments of the file again using the current version and height, the
+     * segments are written to a new file that replaces the Landscape file once it is
+     * complete so the original file stays intact if the migration fails.
+     * @param fileHeight height of the segments saved in the file
+     */
+    private void migrate(short fileHeight) throws IOException {
+        final int maxY = Math.min(height, fileHeight) / 16;
+        final Segment[] migrated = new Segment[segments.length];
+        for (int x = 0; x < 16; x++)
+            for (int z = 0; z < 16; z++)
+                for (int y = 0; y < maxY; y++) {
+                    int index = getSegmentIndex(x, y, z);
+                    if(length(table, index) != 0) // segments that have never been saved stay empty
+                        migrated[index] = readSegment(index);
+                }
+
+        // segments are serialized using the current version
+        version = VERSION;
+        dictionary = new Dictionary();
+        final int[] updated = new int[TABLE_SIZE / Integer.BYTES];
+        final File temporary = new File(file.getPath() + ".migration");
+        try (FileChannel out = FileChannel.open(temporary.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long cursor = HEADER_SIZE + TABLE_SIZE;
+            for (int i = 0; i < migrated.length; i++) {
+                if(migrated[i] == null) continue;
+                final ByteBuffer encoded = encode(migrated[i], i, updated);
+                cursor = SectorAllocator.place(cursor, encoded.remaining());
+                updated[i * 2] = (int) cursor;
+                cursor += encoded.remaining();
+                write(out, encoded, Integer.toUnsignedLong(updated[i * 2]));
+            }
+            if(dictionary.size() != 0) {
+                final ByteBuffer serialized = dictionary.serialize(dictionary.size());
+                cursor = SectorAllocator.place(cursor, serialized.remaining());
+                updated[DICTIONARY_INDEX * 2] = (int) cursor;
+                updated[DICTIONARY_INDEX * 2 + 1] = serialized.remaining();
+                write(out, serialized, cursor);
+            }
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + TABLE_SIZE).put(header());
+            for (int entry : updated)
+                header.putInt(entry);
+            write(out, header.rewind(), 0);
+            out.force(true);
+        } catch (IOException | RuntimeException exception) {
+            Files.deleteIfExists(temporary.toPath());
+            throw exception;
         }
 
+        mapped = null;
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        openChannel();
+        readTable(segments.length);
+    }
+
+    /**
+     * Called by the registry once the Landscape has been created, channels
+     * opened from now on are tracked by the registry.
+     */
+    void created() {
+        synchronized (lock) {
+            created = true;
+            if(channel.isOpen())
+                registry.opened(this);
+        }
     }
 
     /**
@@ -396,13 +1207,19 @@ public class Landscape {
         final OpenOption[] options = file.exists() ?
                 new OpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE} :
                 new OpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE, StandardOpenOption.CREATE_NEW};
-        channel = Files.newByteChannel(file.toPath(), options);
+        channel = FileChannel.open(file.toPath(), options);
+        closed = false;
+        if(created)
+            registry.opened(this);
     }
 
     /**
+     * @param x x coordinate of the segment
+     * @param y y coordinate of the segment
+     * @param z z coordinate of the segment
      * @return unique index for the segment from its coordinates
      */
-    private int segmentIndex(int x, int y, int z) {
+    public int getSegmentIndex(int x, int y, int z) {
         int index = y << 8; // y has to be the furthest due to variable height
         index |= z << 4;
         index |= x;
@@ -1,5 +1,7 @@
 package org.machinemc.landscape;
 
+import java.util.concurrent.Executor;
+
 /**
  * Handles additional actions for Landscape files.
  */
@@ -16,8 +18,9 @@ public interface LandscapeHandler {
     String getDefaultBiome();
 
     /**
-     * @return whether the Landscape file should automatically save after certain amount
-     * of segments are pushed
+     * @return whether the Landscape file should automatically save in the background
+     * after certain amount of segments are pushed
+     * @see AutoSaveScheduler
      */
     boolean isAutoSave();
 
@@ -26,4 +29,92 @@ public interface LandscapeHandler {
      */
     int getAutoSaveLimit();
 
+    /**
+     * @return time in milliseconds after which pushed segments are saved by the auto save
+     * even if the limit of pushed segments hasn't been reached, 0 to save only once the limit is reached
+     * @see AutoSaveScheduler
+     */
+    default long getAutoSaveInterval() {
+        return 60_000;
+    }
+
+    /**
+     * Auto saves of all Landscape files share the limit, auto save of this Landscape
+     * file is started only if fewer auto saves are running.
+     * @return maximum number of Landscape files saved by the auto save at the same time
+     * @see AutoSaveScheduler
+     */
+    default int getMaxConcurrentAutoSaves() {
+        return 2;
+    }
+
+    /**
+     * Auto saves of all Landscape files share the limit, auto save of this Landscape
+     * file is delayed while the bytes written by previous auto saves exceed it.
+     * @return maximum number of bytes written by the auto saves per second, 0 if not limited
+     * @see AutoSaveScheduler
+     */
+    default long getMaxAutoSaveBytesPerSecond() {
+        return 0;
+    }
+
+    /**
+     * Called when the auto save of the Landscape file fails, by default the exception
+     * is passed to the uncaught exception handler of the current thread, the auto save
+     * is retried with increasing delay.
+     * @param landscape landscape that failed to save
+     * @param exception cause of the failure
+     */
+    default void onAutoSaveFailed(Landscape landscape, Exception exception) {
+        Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), exception);
+    }
+
+    /**
+     * @return ratio of unreferenced bytes in the Landscape file at which the file
+     * is compacted after flush, values greater or equal to 1 disable the compaction
+     */
+    default double getCompactionThreshold() {
+        return 0.5;
+    }
+
+    /**
+     * @return whether segments should be read from memory mapped Landscape file
+     * instead of reading them from the file channel
+     */
+    default boolean isMemoryMapped() {
+        return false;
+    }
+
+    /**
+     * @return number of recently used segments per Landscape file that stay loaded
+     * even if they are no longer referenced
+     */
+    default int getSegmentCacheSize() {
+        return 0;
+    }
+
+    /**
+     * @return whether segments that are no longer referenced should be kept
+     * loaded until the memory is needed
+     */
+    default boolean isSoftCache() {
+        return false;
+    }
+
+    /**
+     * @return compression codec used for newly saved segments
+     */
+    default Compression getCompression() {
+        return Compression.NONE;
+    }
+
+    /**
+     * @return executor used by the asynchronous operations of Landscape files,
+     * by default each operation runs on a new virtual thread
+     * @see Landscape#loadSegmentAsync(int, int, int)
+     */
+    default Executor getExecutor() {
+        return command -> Thread.ofVirtual().name("landscape-io").start(command);
+    }
+
 }
@@ -0,0 +1,278 @@
+package org.machinemc.landscape;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of Landscape files in a single directory.
+ * <p>
+ * Landscapes are indexed by their coordinates and are forgotten once they are
+ * no longer referenced. The registry also limits the number of Landscapes with
+ * open file channels, channels of the least recently used Landscapes are closed
+ * and opened again once the Landscape is accessed.
+ * <p>
+ * Open channels are tracked by the coordinates of their Landscapes so the registry
+ * doesn't keep the Landscapes loaded, channels of Landscapes that have been
+ * collected by the garbage collector are closed by the registry.
+ */
+public class LandscapeRegistry {
+
+    public static final int DEFAULT_MAX_OPEN_CHANNELS = 1024;
+
+    private final static Map<File, LandscapeRegistry> registries = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    private final Map<Long, LandscapeReference> landscapes = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Landscape> queue = new ReferenceQueue<>();
+    private final Map<Long, CompletableFuture<Landscape>> loading = new ConcurrentHashMap<>(); // Landscapes being created
+
+    private final LinkedHashMap<Long, FileChannel> open = new LinkedHashMap<>(16, 0.75f, true); // open channels by Landscape keys in access order
+    private volatile int maxOpenChannels = DEFAULT_MAX_OPEN_CHANNELS;
+
+    /**
+     * Returns registry for given directory.
+     * @param directory directory with the Landscape files
+     * @return registry
+     */
+    public static LandscapeRegistry of(File directory) {
+        return registries.computeIfAbsent(directory.getAbsoluteFile(), LandscapeRegistry::new);
+    }
+
+    private LandscapeRegistry(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Creates new or loads already existing Landscape file.
+     * @param x x coordinate of the Landscape
+     * @param y y coordinate of the Landscape
+     * @param height height of the Landscape, -1 if it should be read from the file
+     * @param handler handler of the Landscape
+     * @return Landscape
+     */
+    public Landscape get(int x, int y, short height, LandscapeHandler handler) {
+        expunge();
+        final Landscape landscape = load(x, y, height, handler);
+        trim();
+        return landscape;
+    }
+
+    /**
+     * Returns loaded Landscape or loads it, the Landscape is created without
+     * holding any lock of the registry, concurrent loads of the same Landscape
+     * wait for the first one.
+     * @param x x coordinate of the Landscape
+     * @param y y coordinate of the Landscape
+     * @param height height of the Landscape, -1 if it should be read from the file
+     * @param handler handler of the Landscape
+     * @return Landscape
+     */
+    private Landscape load(int x, int y, short height, LandscapeHandler handler) {
+        final long key = key(x, y);
+        while (true) {
+            final Landscape loaded = getIfLoaded(key);
+            if(loaded != null) return loaded;
+
+            final CompletableFuture<Landscape> future = new CompletableFuture<>();
+            final CompletableFuture<Landscape> pending = loading.putIfAbsent(key, future);
+            if(pending != null) {
+                try {
+                    return pending.join();
+                } catch (CompletionException exception) {
+                    if(exception.getCause() instanceof RuntimeException runtime) throw runtime;
+                    throw exception;
+                }
+            }
+
+            try {
+                // Landscape might have been loaded before the future was registered
+                final Landscape existing = getIfLoaded(key);
+                if(existing != null) {
+                    future.complete(existing);
+                    return existing;
+                }
+                final Landscape landscape;
+                try {
+                    landscape = new Landscape(this, new File(directory, "r_" + x + "_" + y + ".ls"), x, y, height, handler);
+                } catch (IOException exception) {
+                    throw new RuntimeException(exception);
+                }
+                landscapes.put(key, new LandscapeReference(landscape, queue, key));
+                landscape.created();
+                future.complete(landscape);
+                return landscape;
+            } catch (RuntimeException exception) {
+                future.completeExceptionally(exception);
+                throw exception;
+            } finally {
+                loading.remove(key, future);
+            }
+        }
+    }
+
+    private @Nullable Landscape getIfLoaded(long key) {
+        final LandscapeReference reference = landscapes.get(key);
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * Returns already loaded Landscape.
+     * @param x x coordinate of the Landscape
+     * @param y y coordinate of the Landscape
+     * @return Landscape or null if it isn't loaded
+     */
+    public @Nullable Landscape getIfLoaded(int x, int y) {
+        expunge();
+        return getIfLoaded(key(x, y));
+    }
+
+    /**
+     * @return maximum number of Landscapes with open file channel
+     */
+    public int getMaxOpenChannels() {
+        return maxOpenChannels;
+    }
+
+    /**
+     * Changes maximum number of Landscapes with open file channel.
+     * @param maxOpenChannels new maximum
+     */
+    public void setMaxOpenChannels(int maxOpenChannels) {
+        if(maxOpenChannels < 1) throw new IllegalArgumentException();
+        this.maxOpenChannels = maxOpenChannels;
+        trim();
+    }
+
+    /**
+     * @return number of Landscapes with open file channel
+     */
+    public int getOpenChannels() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+
+    /**
+     * Called once channel of the Landscape is opened.
+     * @param landscape landscape
+     */
+    void opened(Landscape landscape) {
+        final FileChannel previous;
+        synchronized (open) {
+            previous = open.put(key(landscape.x, landscape.y), landscape.channel);
+        }
+        // live Landscape closes its channel before opening a new one, the previous
+        // channel belongs to a collected Landscape with the same coordinates
+        if(previous != null && previous != landscape.channel)
+            close(previous);
+    }
+
+    /**
+     * Called once channel of the Landscape is used.
+     * @param landscape landscape
+     */
+    void touched(Landscape landscape) {
+        synchronized (open) {
+            open.get(key(landscape.x, landscape.y));
+        }
+    }
+
+    /**
+     * Called once channel of the Landscape is closed.
+     * @param landscape landscape
+     */
+    void closed(Landscape landscape) {
+        synchronized (open) {
+            open.remove(key(landscape.x, landscape.y), landscape.channel);
+        }
+    }
+
+    /**
+     * Closes channels of the least recently used Landscapes until the
+     * limit of open channels is met.
+     * <p>
+     * Can't be called while holding lock of any Landscape.
+     */
+    void trim() {
+        final List<Map.Entry<Long, FileChannel>> idle = new ArrayList<>();
+        synchronized (open) {
+            int excess = open.size() - maxOpenChannels;
+            if(excess <= 0) return;
+            var iterator = open.entrySet().iterator();
+            while (excess-- > 0 && iterator.hasNext()) {
+                final Map.Entry<Long, FileChannel> entry = iterator.next();
+                idle.add(Map.entry(entry.getKey(), entry.getValue()));
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<Long, FileChannel> entry : idle) {
+            final Landscape landscape = getIfLoaded(entry.getKey());
+            try {
+                if(landscape != null)
+                    landscape.closeIdle();
+                else
+                    entry.getValue().close();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+    }
+
+    /**
+     * Removes references of Landscapes collected by the garbage collector.
+     */
+    private void expunge() {
+        LandscapeReference reference;
+        while ((reference = (LandscapeReference) queue.poll()) != null) {
+            landscapes.remove(reference.key, reference);
+            final FileChannel channel;
+            synchronized (open) {
+                // channel of a Landscape loaded again in the meantime stays open
+                if(getIfLoaded(reference.key) != null) continue;
+                channel = open.remove(reference.key);
+            }
+            if(channel != null) close(channel);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private static long key(int x, int y) {
+        return (long) x << 32 | Integer.toUnsignedLong(y);
+    }
+
+    private static class LandscapeReference extends WeakReference<Landscape> {
+
+        private final long key;
+
+        LandscapeReference(Landscape referent, ReferenceQueue<Landscape> queue, long key) {
+            super(referent, queue);
+            this.key = key;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.machinemc.landscape;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes values of container palettes in serialized containers.
+ * <p>
+ * Landscape files save the values as ids of their region-wide dictionary,
+ * containers serialized without a Landscape use {@link #UTF}.
+ */
+public interface PaletteCodec {
+
+    /**
+     * Codec that saves each value as int length followed by its UTF-8 bytes,
+     * used by Landscape files saved using version 2 and older, read values
+     * are canonical instances of {@link ValuePool}.
+     */
+    PaletteCodec UTF = new PaletteCodec() {
+        @Override
+        public void write(ByteBuf buf, String value) {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            buf.writeInt(data.length).writeBytes(data);
+        }
+
+        @Override
+        public String read(ByteBuffer buf) {
+            return ValuePool.global().read(buf, buf.getInt());
+        }
+    };
+
+    /**
+     * Writes palette value to the buffer.
+     * @param buf buffer to write to
+     * @param value value
+     */
+    void write(ByteBuf buf, String value);
+
+    /**
+     * Reads palette value from the buffer.
+     * @param buf buffer to read from
+     * @return value
+     */
+    String read(ByteBuffer buf) throws IOException;
+
+}
@@ -0,0 +1,133 @@
+package org.machinemc.landscape;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Format of the paletted container used by the Minecraft protocol
+ * to send blocks and biomes of a chunk section.
+ * <p>
+ * Container is written as bits per entry, palette of varint ids (omitted
+ * if the ids are stored directly) and varint prefixed array of packed longs,
+ * entries are ordered as {@code x | z << n | y << 2n} and don't span
+ * across multiple longs.
+ */
+public final class PalettedFormat {
+
+    /**
+     * Format of the block states.
+     */
+    public static final PalettedFormat BLOCKS = new PalettedFormat(4, 8, 15);
+
+    /**
+     * Format of the biomes.
+     */
+    public static final PalettedFormat BIOMES = new PalettedFormat(1, 3, 6);
+
+    private final int minBits;
+    private final int maxBits;
+    private final int directBits;
+
+    /**
+     * @param minBits minimum number of bits per entry of the palette
+     * @param maxBits maximum number of bits per entry of the palette
+     * @param directBits number of bits per entry if ids are stored directly
+     */
+    public PalettedFormat(int minBits, int maxBits, int directBits) {
+        if(minBits < 1 || maxBits < minBits || directBits <= maxBits || directBits > 32)
+            throw new IllegalArgumentException();
+        this.minBits = minBits;
+        this.maxBits = maxBits;
+        this.directBits = directBits;
+    }
+
+    public int getMinBits() {
+        return minBits;
+    }
+
+    public int getMaxBits() {
+        return maxBits;
+    }
+
+    public int getDirectBits() {
+        return directBits;
+    }
+
+    /**
+     * Writes the container to the buffer.
+     * @param container container to write
+     * @param mapping mapping of the values to the protocol ids
+     * @param buf buffer to write to
+     */
+    public void write(ValueContainer container, ToIntFunction<String> mapping, ByteBuf buf) {
+        final int dimension = container.getDimension();
+        final int shift = ValueContainer.bits(dimension);
+        final int entries = dimension * dimension * dimension;
+        final short[] indices = new short[entries];
+        final String[] palette = container.exportIndices(indices);
+
+        // maps palette indices of the container to the written ones, unused values are left out
+        final int[] remap = new int[palette.length];
+        Arrays.fill(remap, -1);
+        final int[] values = new int[entries];
+        int size = 0;
+        for (int y = 0; y < dimension; y++) {
+            for (int z = 0; z < dimension; z++) {
+                for (int x = 0; x < dimension; x++) {
+                    final int entry = Short.toUnsignedInt(indices[ValueContainer.shiftedIndex(x, y, z, shift)]);
+                    if(remap[entry] == -1) remap[entry] = size++;
+                    values[x | z << shift | y << (shift << 1)] = remap[entry];
+                }
+            }
+        }
+        final String[] used = new String[size];
+        for (int i = 0; i < palette.length; i++)
+            if(remap[i] != -1) used[remap[i]] = palette[i];
+
+        if(size == 1) {
+            buf.writeByte(0);
+            writeVarInt(buf, mapping.applyAsInt(used[0]));
+            writeVarInt(buf, 0);
+            return;
+        }
+
+        int bits = Math.max(minBits, Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+        if(bits <= maxBits) {
+            buf.writeByte(bits);
+            writeVarInt(buf, size);
+            for (String value : used)
+                writeVarInt(buf, mapping.applyAsInt(value));
+        } else {
+            bits = directBits;
+            final int[] ids = new int[size];
+            for (int i = 0; i < size; i++)
+                ids[i] = mapping.applyAsInt(used[i]);
+            for (int i = 0; i < entries; i++)
+                values[i] = ids[values[i]];
+            buf.writeByte(bits);
+        }
+
+        final int perLong = Long.SIZE / bits;
+        final int length = (entries + perLong - 1) / perLong;
+        final long mask = (1L << bits) - 1;
+        writeVarInt(buf, length);
+        int index = 0;
+        for (int cell = 0; cell < length; cell++) {
+            long value = 0;
+            for (int i = 0; i < perLong && index < entries; i++, index++)
+                value |= (values[index] & mask) << (i * bits);
+            buf.writeLong(value);
+        }
+    }
+
+    static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+}
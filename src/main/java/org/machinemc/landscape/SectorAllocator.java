@@ -0,0 +1,155 @@
+package org.machinemc.landscape;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of unused space in the data section of a Landscape file.
+ * <p>
+ * Segments are placed so they don't cross a sector boundary unless they
+ * can't fit in a single sector, in which case they start at the beginning
+ * of a sector.
+ */
+class SectorAllocator {
+
+    static final int SECTOR_SIZE = 4096;
+
+    private final long start;
+    private final TreeMap<Long, Long> free = new TreeMap<>(); // free extents, start -> end
+    private volatile long freeBytes; // total length of the free extents
+    private volatile long end;
+
+    /**
+     * @param start position of the first byte of the data section
+     */
+    SectorAllocator(long start) {
+        this.start = start;
+        this.end = start;
+    }
+
+    /**
+     * Returns first position at or after given position where data
+     * of given length can be placed.
+     * @param position position
+     * @param length length of the data
+     * @return position for the data
+     */
+    static long place(long position, int length) {
+        final long offset = position % SECTOR_SIZE;
+        if(offset == 0 || offset + length <= SECTOR_SIZE) return position;
+        return position - offset + SECTOR_SIZE;
+    }
+
+    /**
+     * Rebuilds the free space from the look-up table.
+     * @param table look-up table, (position, length) pairs
+     */
+    void rebuild(int[] table) {
+        free.clear();
+        freeBytes = 0;
+        final long[] extents = new long[table.length / 2];
+        for (int i = 0; i < extents.length; i++)
+            extents[i] = Integer.toUnsignedLong(table[i * 2]) << 32 | (table[i * 2 + 1] & Landscape.LENGTH_MASK);
+        Arrays.sort(extents);
+
+        long cursor = start;
+        for (long extent : extents) {
+            final long position = extent >>> 32;
+            final long length = extent & 0xFFFFFFFFL;
+            if(length == 0) continue;
+            if(position > cursor)
+                add(cursor, position);
+            cursor = Math.max(cursor, position + length);
+        }
+        end = cursor;
+    }
+
+    /**
+     * Allocates space for data of given length, the first free extent the data
+     * fit in is used, otherwise the space is allocated at the end.
+     * <p>
+     * Space of data that are being replaced has to stay allocated until the
+     * change is saved in the journal, so the new data never overwrite it.
+     * @param length length of the data
+     * @return position of the allocated space
+     */
+    long allocate(int length) {
+        for (Map.Entry<Long, Long> extent : free.entrySet()) {
+            final long position = place(extent.getKey(), length);
+            if(position + length > extent.getValue()) continue;
+            take(extent, position, length);
+            return position;
+        }
+
+        final long position = place(end, length);
+        if(position != end)
+            free(end, (int) (position - end));
+        end = position + length;
+        return position;
+    }
+
+    /**
+     * Marks space as free.
+     * @param position position of the data
+     * @param length length of the data
+     */
+    void free(long position, int length) {
+        if(length == 0) return;
+        long from = position;
+        long to = position + length;
+
+        final Map.Entry<Long, Long> previous = free.floorEntry(from);
+        if(previous != null && previous.getValue() == from) {
+            from = previous.getKey();
+            remove(from);
+        }
+        final Long next = free.get(to);
+        if(next != null) {
+            remove(to);
+            to = next;
+        }
+
+        if(to == end) { // space at the end of the data section
+            end = from;
+            return;
+        }
+        add(from, to);
+    }
+
+    /**
+     * @return end of the allocated space
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return number of free bytes before the end of the allocated space
+     */
+    long getFree() {
+        return freeBytes;
+    }
+
+    private void take(Map.Entry<Long, Long> extent, long position, int length) {
+        final long from = extent.getKey();
+        final long to = extent.getValue();
+        remove(from);
+        if(position > from)
+            add(from, position);
+        if(position + length < to)
+            add(position + length, to);
+    }
+
+    private void add(long from, long to) {
+        free.put(from, to);
+        freeBytes += to - from;
+    }
+
+    private void remove(long from) {
+        final Long to = free.remove(from);
+        if(to != null)
+            freeBytes -= to - from;
+    }
+
+}
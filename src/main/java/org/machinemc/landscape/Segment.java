@@ -12,6 +12,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ToIntFunction;
 
 /**
  * Represents a Landscape Segment (16x16x16 area of blocks).
@@ -27,40 +30,49 @@ import java.util.List;
  * Segments can be read from and will be forgotten once they are no longer
  * referenced, to write changes to the segment that should be saved
  * later {@link Segment#push()} is used.
+ * <p>
+ * Segments that haven't been changed share default block and biome containers
+ * of their Landscape, own containers are created once the segment is changed.
  */
 public class Segment {
 
-    private static final int BLOCKS_DIMENSION = 16;
-    private static final int BIOMES_DIMENSION = 4;
+    static final int BLOCKS_DIMENSION = 16;
+    static final int BIOMES_DIMENSION = 4;
     private static final int ENTRIES = 4096; // BLOCKS_DIMENSION^3
 
     private final Landscape source;
     private final LandscapeHandler handler;
     private final int index;
 
-    private final ValueContainer blocks;
-    private final ValueContainer biomes;
+    // containers shared with the Landscape until the segment changes, see Landscape#defaultBlocks
+    private volatile WrapperContainer blocks;
+    private volatile WrapperContainer biomes;
+
+    private final ShortMap<NBTCompound> nbt; // NBT of the blocks, only blocks with NBT are present
+
+    private @Nullable BitSet tickingBlocks; // null if there are no ticking blocks
 
-    private final NBTCompound[] nbt;
+    private @Nullable NBTCompound data; // null until the compound is requested
 
-    private final BitSet tickingBlocks;
+    private final StampedLock lock = new StampedLock(); // guards NBT, ticking blocks and serialized parts
 
-    private final NBTCompound data;
+    private final AtomicInteger modifications = new AtomicInteger(); // number of changes of the segment
+    private volatile int saved; // number of changes at the time the segment has been saved
 
-    private final Object lock = new Object();
+    // serialized parts of the segment, cleared when the part changes
+    private byte[] nbtPart;
+    private byte[] tickingPart;
+    private byte[] dataPart;
 
     protected Segment(Landscape source, int index) {
         this.source = source;
         this.index = index;
         this.handler = source.handler;
 
-        blocks = new WrapperContainer(BLOCKS_DIMENSION, handler::getDefaultType);
-        biomes = new WrapperContainer(BIOMES_DIMENSION, handler::getDefaultBiome);
+        blocks = source.defaultBlocks;
+        biomes = source.defaultBiomes;
 
-        nbt = new NBTCompound[ENTRIES];
-        tickingBlocks = new BitSet(ENTRIES);
-
-        data = new NBTCompound();
+        nbt = new ShortMap<>();
     }
 
     protected Segment(Landscape source, int index, ByteBuffer buf) throws IOException {
@@ -68,21 +80,22 @@ public class Segment {
         this.index = index;
         this.handler = source.handler;
 
-        blocks = WrapperContainer.read(buf, BLOCKS_DIMENSION, handler::getDefaultType);
-        biomes = WrapperContainer.read(buf, BIOMES_DIMENSION, handler::getDefaultType);
+        final PaletteCodec codec = source.getCodec();
+        final WrapperContainer blocks = WrapperContainer.read(buf, BLOCKS_DIMENSION, handler::getDefaultType, codec);
+        this.blocks = blocks.getCount() == 0 ? source.defaultBlocks : blocks;
+        final WrapperContainer biomes = WrapperContainer.read(buf, BIOMES_DIMENSION, handler::getDefaultBiome, codec);
+        this.biomes = biomes.getCount() == 0 ? source.defaultBiomes : biomes;
 
-        nbt = new NBTCompound[ENTRIES];
+        nbt = new ShortMap<>();
         BitSet nbtPositions = readBitSet(buf);
-        if(!nbtPositions.isEmpty()) {
-            for (int i = 0; i < ENTRIES; i++) {
-                if(!nbtPositions.get(i)) continue;
-                nbt[i] = readCompound(buf);
-            }
-        }
+        for (int i = nbtPositions.nextSetBit(0); i >= 0; i = nbtPositions.nextSetBit(i + 1))
+            nbt.put(i, readCompound(buf));
 
-        tickingBlocks = readBitSet(buf);
+        final BitSet ticking = readBitSet(buf);
+        tickingBlocks = ticking.isEmpty() ? null : ticking;
 
-        data = readCompound(buf);
+        final NBTCompound data = readCompound(buf);
+        this.data = data.isEmpty() ? null : data;
     }
 
     public Landscape getSource() {
@@ -93,11 +106,38 @@ public class Segment {
         return index;
     }
 
+    /**
+     * Returns the additional compound of the segment, as the compound
+     * can be changed it marks the segment as modified.
+     * @return data compound of the segment
+     */
     public NBTCompound getDataCompound() {
-        return data;
+        final long stamp = lock.writeLock();
+        try {
+            dataPart = null;
+            markModified();
+            if(data == null)
+                data = new NBTCompound();
+            return data;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
+    /**
+     * Pushes the segment to its Landscape so it is saved during the next flush, as
+     * compounds of the segment can be changed after they have been accessed, the
+     * segment is marked as modified.
+     */
     public void push() {
+        final long stamp = lock.writeLock();
+        try {
+            nbtPart = null;
+            dataPart = null;
+            markModified();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
         source.push(this, index);
     }
 
@@ -106,50 +146,173 @@ public class Segment {
     }
 
     public void setBlock(int x, int y, int z, String value) {
-        blocks.set(x, y, z, value);
+        blocks().set(x, y, z, value);
+        markModified();
+    }
+
+    public int getBlockId(int x, int y, int z) {
+        return blocks.getId(x, y, z);
+    }
+
+    public void setBlockId(int x, int y, int z, int id) {
+        blocks().setId(x, y, z, id);
+        markModified();
     }
 
     public void getAllBlocks(EntryConsumer<String> consumer) {
         blocks.getAll(consumer::accept);
     }
 
+    public void getAllBlockIds(IdEntryConsumer consumer) {
+        blocks.getAllIds(consumer::accept);
+    }
+
     public void setAllBlocks(EntrySupplier<String> supplier) {
-        blocks.setAll((x, y, z) -> {
+        blocks().setAll((x, y, z) -> {
             String value = supplier.get(x, y, z);
             if(value == null) throw new NullPointerException();
             return value;
         });
+        markModified();
     }
 
     public void replaceAllBlocks(EntryFunction<String> function) {
-        blocks.replaceAll((x, y, z, value) -> {
+        blocks().replaceAll((x, y, z, value) -> {
             String changed = function.apply(x, y, z, value);
             if(changed == null) throw new NullPointerException();
             return changed;
         });
+        markModified();
+    }
+
+    /**
+     * Copies palette indices of all blocks in the segment to the array, indices
+     * are ordered as {@code x | y << 4 | z << 8}.
+     * @param indices array of at least 4096 entries to copy the indices to
+     * @return block palette the indices point to
+     */
+    public String[] exportBlocks(short[] indices) {
+        return blocks.exportIndices(indices);
+    }
+
+    /**
+     * Replaces all blocks in the segment, indices are ordered as {@code x | y << 4 | z << 8}.
+     * <p>
+     * NBT and ticking state of the blocks is not changed.
+     * @param indices array of at least 4096 palette indices
+     * @param palette block palette the indices point to
+     */
+    public void importBlocks(short[] indices, String[] palette) {
+        for (String value : palette)
+            if(value == null) throw new NullPointerException();
+        blocks().importIndices(indices, palette);
+        markModified();
+    }
+
+    /**
+     * Returns NBT of the block at given coordinates, if the block has no NBT
+     * new compound is created, changes of the compound are saved once
+     * the segment is pushed.
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return NBT of the block
+     */
+    public NBTCompound getNBT(int x, int y, int z) {
+        final NBTCompound present = getNBTIfPresent(x, y, z);
+        if(present != null) return present;
+        final long stamp = lock.writeLock();
+        try {
+            final int index = ValueContainer.blockIndex(x, y, z);
+            NBTCompound compound = nbt.get(index);
+            if (compound != null)
+                return compound;
+            compound = new NBTCompound(); // empty compounds are not saved, the segment stays unchanged
+            nbt.put(index, compound);
+            return compound;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
-    public NBTCompound getNBT(int x, int y, int z) {
-        synchronized (lock) {
-            final int index = ValueContainer.index(x, y, z, BLOCKS_DIMENSION);
-            if (nbt[index] != null)
-                return nbt[index];
-            nbt[index] = new NBTCompound();
-            return nbt[index];
+    /**
+     * Returns NBT of the block at given coordinates without creating
+     * a new compound, changes of the compound are saved once the segment is pushed.
+     * @param x x coordinate of the block
+     * @param y y coordinate of the block
+     * @param z z coordinate of the block
+     * @return NBT of the block or null if the block has no NBT
+     */
+    public @Nullable NBTCompound getNBTIfPresent(int x, int y, int z) {
+        final int index = ValueContainer.blockIndex(x, y, z);
+        final long optimistic = lock.tryOptimisticRead();
+        if(optimistic != 0) {
+            try {
+                final NBTCompound compound = nbt.get(index);
+                if(lock.validate(optimistic)) return compound;
+            } catch (RuntimeException ignored) { } // map has been changed during the read
+        }
+        final long stamp = lock.readLock();
+        try {
+            return nbt.get(index);
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
     public void setNBT(int x, int y, int z, @Nullable NBTCompound compound) {
-        synchronized (lock) {
-            nbt[ValueContainer.index(x, y, z, BLOCKS_DIMENSION)] = compound;
+        final long stamp = lock.writeLock();
+        try {
+            nbt.put(ValueContainer.blockIndex(x, y, z), compound);
+            nbtPart = null;
+            markModified();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
+    /**
+     * Iterates over NBT of all blocks, blocks without NBT get new empty compound
+     * that is not kept by the segment, to add NBT to a block {@link #getNBT(int, int, int)}
+     * or {@link #replaceAllNBT(EntryFunction)} is used and to iterate only over blocks
+     * with NBT {@link #getAllPresentNBT(EntryConsumer)} is used.
+     * @param consumer consumer of the NBT
+     */
     public void getAllNBT(EntryConsumer<NBTCompound> consumer) {
+        final NBTCompound[] compounds = presentNBT();
         for (int x = 0; x < 16; x++)
             for (int y = 0; y < 16; y++)
-                for (int z = 0; z < 16; z++)
-                    consumer.accept(x, y, z, getNBT(x, y, z));
+                for (int z = 0; z < 16; z++) {
+                    final NBTCompound compound = compounds[ValueContainer.blockIndex(x, y, z)];
+                    consumer.accept(x, y, z, compound != null ? compound : new NBTCompound());
+                }
+    }
+
+    /**
+     * Iterates over NBT of blocks that have NBT, changes of the compounds
+     * are saved once the segment is pushed.
+     * @param consumer consumer of the NBT
+     */
+    public void getAllPresentNBT(EntryConsumer<NBTCompound> consumer) {
+        final int[] positions;
+        final NBTCompound[] compounds;
+        final long stamp = lock.readLock();
+        try {
+            positions = new int[nbt.size()];
+            compounds = new NBTCompound[positions.length];
+            if(positions.length == 0) return;
+            final int[] count = {0};
+            nbt.forEach((index, compound) -> {
+                positions[count[0]] = index;
+                compounds[count[0]++] = compound;
+            });
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < positions.length; i++) {
+            final int index = positions[i];
+            consumer.accept(index & 15, (index >> 4) & 15, index >> 8, compounds[i]);
+        }
     }
 
     public void setAllNBT(EntrySupplier<@Nullable NBTCompound> supplier) {
@@ -159,22 +322,66 @@ public class Segment {
                     setNBT(x, y, z, supplier.get(x, y, z));
     }
 
+    /**
+     * Replaces NBT of all blocks, blocks without NBT get new empty compound,
+     * the compound is kept by the segment only if it is returned and is not empty.
+     * @param function function returning new NBT of the block
+     */
     public void replaceAllNBT(EntryFunction<@Nullable NBTCompound> function) {
+        final NBTCompound[] compounds = presentNBT();
         for (int x = 0; x < 16; x++)
             for (int y = 0; y < 16; y++)
-                for (int z = 0; z < 16; z++)
-                    setNBT(x, y, z, function.apply(x, y, z, getNBT(x, y, z)));
+                for (int z = 0; z < 16; z++) {
+                    final NBTCompound present = compounds[ValueContainer.blockIndex(x, y, z)];
+                    final NBTCompound value = present != null ? present : new NBTCompound();
+                    final NBTCompound changed = function.apply(x, y, z, value);
+                    if(present == null && (changed == null || changed == value && changed.isEmpty())) continue;
+                    setNBT(x, y, z, changed);
+                }
+    }
+
+    /**
+     * @return NBT of the blocks indexed by the block index, null for blocks without NBT
+     */
+    private NBTCompound[] presentNBT() {
+        final NBTCompound[] compounds = new NBTCompound[ENTRIES];
+        final long stamp = lock.readLock();
+        try {
+            nbt.forEach((index, compound) -> compounds[index] = compound);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return compounds;
     }
 
     public boolean isTicking(int x, int y, int z) {
-        synchronized (lock) {
-            return tickingBlocks.get(ValueContainer.index(x, y, z, BLOCKS_DIMENSION));
+        final long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                final BitSet tickingBlocks = this.tickingBlocks;
+                final boolean ticking = tickingBlocks != null && tickingBlocks.get(ValueContainer.blockIndex(x, y, z));
+                if(lock.validate(stamp)) return ticking;
+            } catch (RuntimeException ignored) { } // bit set has been changed during the read
+        }
+        final long read = lock.readLock();
+        try {
+            return tickingBlocks != null && tickingBlocks.get(ValueContainer.blockIndex(x, y, z));
+        } finally {
+            lock.unlockRead(read);
         }
     }
 
     public void setTicking(int x, int y, int z, boolean ticking) {
-        synchronized (lock) {
-            tickingBlocks.set(ValueContainer.index(x, y, z, BLOCKS_DIMENSION), ticking);
+        final long stamp = lock.writeLock();
+        try {
+            if(tickingBlocks == null && ticking)
+                tickingBlocks = new BitSet(ENTRIES);
+            if(tickingBlocks != null)
+                tickingBlocks.set(ValueContainer.blockIndex(x, y, z), ticking);
+            tickingPart = null;
+            markModified();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -212,50 +419,149 @@ public class Segment {
 
     public void setBiome(int x, int y, int z, String type) {
         if(type == null) throw new NullPointerException();
-        biomes.set(x / BIOMES_DIMENSION, y / BIOMES_DIMENSION, z / BIOMES_DIMENSION, type);
+        biomes().set(x / BIOMES_DIMENSION, y / BIOMES_DIMENSION, z / BIOMES_DIMENSION, type);
+        markModified();
+    }
+
+    public int getBiomeId(int x, int y, int z) {
+        return biomes.getId(x / BIOMES_DIMENSION, y / BIOMES_DIMENSION, z / BIOMES_DIMENSION);
+    }
+
+    public void setBiomeId(int x, int y, int z, int id) {
+        biomes().setId(x / BIOMES_DIMENSION, y / BIOMES_DIMENSION, z / BIOMES_DIMENSION, id);
+        markModified();
     }
 
     public void getAllBiomes(EntryConsumer<String> consumer) {
-        biomes.getAll((x, y, z, value) -> {
-            for (int rx = 0; rx < BIOMES_DIMENSION; rx++)
-                for (int ry = 0; ry < BIOMES_DIMENSION; ry++)
-                    for (int rz = 0; rz < BIOMES_DIMENSION; rz++)
-                        consumer.accept(x+rx, y+ry, z+rz, value);
-        });
+        final short[] indices = new short[BIOMES_DIMENSION * BIOMES_DIMENSION * BIOMES_DIMENSION];
+        final String[] palette = biomes.exportIndices(indices);
+        for (int x = 0; x < 16; x++)
+            for (int y = 0; y < 16; y++)
+                for (int z = 0; z < 16; z++) {
+                    final int index = ValueContainer.biomeIndex(x / BIOMES_DIMENSION, y / BIOMES_DIMENSION, z / BIOMES_DIMENSION);
+                    consumer.accept(x, y, z, palette[Short.toUnsignedInt(indices[index])]);
+                }
     }
 
     public void setAllBiomes(EntrySupplier<String> supplier) {
-        biomes.setAll((x, y, z) -> {
-            String value = supplier.get(x, y, z);
-            if(value == null) throw new NullPointerException();
-            return value;
-        });
+        final String[] values = new String[BIOMES_DIMENSION * BIOMES_DIMENSION * BIOMES_DIMENSION];
+        for (int x = 0; x < BIOMES_DIMENSION; x++)
+            for (int y = 0; y < BIOMES_DIMENSION; y++)
+                for (int z = 0; z < BIOMES_DIMENSION; z++) {
+                    String value = supplier.get(x, y, z);
+                    if(value == null) throw new NullPointerException();
+                    values[ValueContainer.biomeIndex(x, y, z)] = value;
+                }
+        biomes().setAll(values);
+        markModified();
     }
 
     public void replaceAllBiomes(EntryFunction<String> function) {
-        biomes.replaceAll((x, y, z, value) -> {
+        biomes().replaceAll((x, y, z, value) -> {
             String first = null;
             for (int rx = 0; rx < BIOMES_DIMENSION; rx++)
                 for (int ry = 0; ry < BIOMES_DIMENSION; ry++)
                     for (int rz = 0; rz < BIOMES_DIMENSION; rz++) {
-                        String next = function.apply(x + rx, y + ry, z + rz, value);
+                        String next = function.apply(x * BIOMES_DIMENSION + rx, y * BIOMES_DIMENSION + ry, z * BIOMES_DIMENSION + rz, value);
                         if(rx == 0 && ry == 0 && rz == 0)
                             first = next;
                     }
             if(first == null) throw new NullPointerException();
             return first;
         });
+        markModified();
+    }
+
+    /**
+     * Copies palette indices of all biomes (4x4x4) in the segment to the array, indices
+     * are ordered as {@code x | y << 2 | z << 4} where coordinates are divided by 4.
+     * @param indices array of at least 64 entries to copy the indices to
+     * @return biome palette the indices point to
+     */
+    public String[] exportBiomes(short[] indices) {
+        return biomes.exportIndices(indices);
+    }
+
+    /**
+     * Replaces all biomes (4x4x4) in the segment, indices are ordered as
+     * {@code x | y << 2 | z << 4} where coordinates are divided by 4.
+     * @param indices array of at least 64 palette indices
+     * @param palette biome palette the indices point to
+     */
+    public void importBiomes(short[] indices, String[] palette) {
+        for (String value : palette)
+            if(value == null) throw new NullPointerException();
+        biomes().importIndices(indices, palette);
+        markModified();
+    }
+
+    /**
+     * Writes blocks of the segment to the buffer as paletted container
+     * used by the Minecraft protocol, see {@link PalettedFormat#BLOCKS}.
+     * <p>
+     * The written data are cached until the blocks change, the cache is
+     * reused only if the same mapping instance is used.
+     * @param buf buffer to write to
+     * @param mapping mapping of the block types to the protocol ids
+     */
+    public void writeBlocks(ByteBuf buf, ToIntFunction<String> mapping) {
+        writeBlocks(buf, mapping, PalettedFormat.BLOCKS);
+    }
+
+    /**
+     * Writes blocks of the segment to the buffer as paletted container
+     * used by the Minecraft protocol.
+     * @param buf buffer to write to
+     * @param mapping mapping of the block types to the protocol ids
+     * @param format format of the container
+     * @see #writeBlocks(ByteBuf, ToIntFunction)
+     */
+    public void writeBlocks(ByteBuf buf, ToIntFunction<String> mapping, PalettedFormat format) {
+        blocks.write(buf, mapping, format);
+    }
+
+    /**
+     * Writes biomes of the segment to the buffer as paletted container
+     * used by the Minecraft protocol, see {@link PalettedFormat#BIOMES}.
+     * <p>
+     * The written data are cached until the biomes change, the cache is
+     * reused only if the same mapping instance is used.
+     * @param buf buffer to write to
+     * @param mapping mapping of the biomes to the protocol ids
+     */
+    public void writeBiomes(ByteBuf buf, ToIntFunction<String> mapping) {
+        writeBiomes(buf, mapping, PalettedFormat.BIOMES);
+    }
+
+    /**
+     * Writes biomes of the segment to the buffer as paletted container
+     * used by the Minecraft protocol.
+     * @param buf buffer to write to
+     * @param mapping mapping of the biomes to the protocol ids
+     * @param format format of the container
+     * @see #writeBiomes(ByteBuf, ToIntFunction)
+     */
+    public void writeBiomes(ByteBuf buf, ToIntFunction<String> mapping, PalettedFormat format) {
+        biomes.write(buf, mapping, format);
     }
 
     public void fill(String blockType) {
-        blocks.fill(blockType);
-        for (int i = 0; i < ENTRIES; i++)
-            nbt[i] = null;
-        tickingBlocks.set(0, ENTRIES, false);
+        blocks().fill(blockType);
+        final long stamp = lock.writeLock();
+        try {
+            nbt.clear();
+            tickingBlocks = null;
+            nbtPart = null;
+            tickingPart = null;
+            markModified();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     public void fillBiome(String biome) {
-        biomes.fill(biome);
+        biomes().fill(biome);
+        markModified();
     }
 
     public boolean isEmpty() {
@@ -279,35 +585,120 @@ public class Segment {
     }
 
     public void reset() {
-        synchronized (lock) {
-            blocks.reset();
-            biomes.reset();
-            for (int i = 0; i < ENTRIES; i++)
-                nbt[i] = null;
-            tickingBlocks.set(0, ENTRIES, false);
-            data.clear();
+        final long stamp = lock.writeLock();
+        try {
+            blocks = source.defaultBlocks;
+            biomes = source.defaultBiomes;
+            nbt.clear();
+            tickingBlocks = null;
+            if(data != null)
+                data.clear();
+            nbtPart = null;
+            tickingPart = null;
+            dataPart = null;
+            markModified();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return whether the segment has been changed since it was last saved
+     */
+    public boolean isModified() {
+        return modifications.get() != saved;
+    }
+
+    /**
+     * Marks the segment as changed so it is saved during the next flush.
+     */
+    void markModified() {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * @return number of changes of the segment, used to mark the segment as saved
+     * @see #saved(int)
+     */
+    int getModifications() {
+        return modifications.get();
+    }
+
+    /**
+     * Marks the segment as saved.
+     * @param modifications number of changes of the segment at the time it has been serialized
+     */
+    void saved(int modifications) {
+        saved = modifications;
+    }
+
+    /**
+     * @return container of the blocks that can be changed, shared default container is replaced by own one
+     */
+    private WrapperContainer blocks() {
+        final WrapperContainer blocks = this.blocks;
+        if(blocks != source.defaultBlocks) return blocks;
+        final long stamp = lock.writeLock();
+        try {
+            if(this.blocks == source.defaultBlocks)
+                this.blocks = new WrapperContainer(BLOCKS_DIMENSION, handler::getDefaultType);
+            return this.blocks;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return container of the biomes that can be changed, shared default container is replaced by own one
+     */
+    private WrapperContainer biomes() {
+        final WrapperContainer biomes = this.biomes;
+        if(biomes != source.defaultBiomes) return biomes;
+        final long stamp = lock.writeLock();
+        try {
+            if(this.biomes == source.defaultBiomes)
+                this.biomes = new WrapperContainer(BIOMES_DIMENSION, handler::getDefaultBiome);
+            return this.biomes;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     public ByteBuffer serialize() {
         ByteBuf unpooled = Unpooled.buffer();
-        unpooled.writeBytes(blocks.serialize());
-        unpooled.writeBytes(biomes.serialize());
-
-        synchronized (lock) {
-            BitSet nbtPositions = new BitSet(ENTRIES);
-            for (int i = 0; i < nbt.length; i++) {
-                if (nbt[i] == null || nbt[i].isEmpty()) continue;
-                nbtPositions.set(i);
-            }
-            writeBitSet(unpooled, nbtPositions);
-            for (NBTCompound compound : nbt) {
-                if (compound != null) writeCompound(unpooled, compound);
+        unpooled.writeBytes(blocks.serialize(source.dictionary));
+        unpooled.writeBytes(biomes.serialize(source.dictionary));
+
+        final long stamp = lock.writeLock();
+        try {
+            if(nbtPart == null) {
+                ByteBuf part = Unpooled.buffer();
+                BitSet nbtPositions = new BitSet(ENTRIES);
+                nbt.forEach((index, compound) -> {
+                    if (!compound.isEmpty()) nbtPositions.set(index);
+                });
+                writeBitSet(part, nbtPositions);
+                for (int i = nbtPositions.nextSetBit(0); i >= 0; i = nbtPositions.nextSetBit(i + 1))
+                    writeCompound(part, nbt.get(i));
+                nbtPart = toArray(part);
             }
+            unpooled.writeBytes(nbtPart);
 
-            writeBitSet(unpooled, tickingBlocks);
+            if(tickingPart == null) {
+                ByteBuf part = Unpooled.buffer();
+                writeBitSet(part, tickingBlocks != null ? tickingBlocks : new BitSet());
+                tickingPart = toArray(part);
+            }
+            unpooled.writeBytes(tickingPart);
 
-            writeCompound(unpooled, data);
+            if(dataPart == null) {
+                ByteBuf part = Unpooled.buffer();
+                writeCompound(part, data != null ? data : new NBTCompound());
+                dataPart = toArray(part);
+            }
+            unpooled.writeBytes(dataPart);
+        } finally {
+            lock.unlockWrite(stamp);
         }
 
         ByteBuffer buf = ByteBuffer.allocate(unpooled.writerIndex());
@@ -315,15 +706,24 @@ public class Segment {
         return buf.rewind();
     }
 
+    private static byte[] toArray(ByteBuf buf) {
+        byte[] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return data;
+    }
+
     private BitSet readBitSet(ByteBuffer buf) {
-        byte[] data = new byte[Byte.toUnsignedInt(buf.get())];
+        final int length = source.version == Landscape.LEGACY_VERSION
+                ? Byte.toUnsignedInt(buf.get())
+                : Short.toUnsignedInt(buf.getShort());
+        byte[] data = new byte[length];
         buf.get(data);
         return BitSet.valueOf(data);
     }
 
     private void writeBitSet(ByteBuf buf, BitSet bitSet) {
         byte[] data = bitSet.toByteArray();
-        buf.writeByte(data.length);
+        buf.writeShort(data.length);
         buf.writeBytes(data);
     }
 
@@ -358,6 +758,11 @@ public class Segment {
         void accept(int x, int y, int z, T value);
     }
 
+    @FunctionalInterface
+    public interface IdEntryConsumer {
+        void accept(int x, int y, int z, int id);
+    }
+
     @FunctionalInterface
     public interface EntryFunction<T> {
         T apply(int x, int y, int z, T value);
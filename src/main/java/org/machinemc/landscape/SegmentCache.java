@@ -0,0 +1,191 @@
+package org.machinemc.landscape;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Cache of segments loaded from a Landscape file indexed by their segment index.
+ * <p>
+ * Segments are weakly (or softly) referenced, additionally up to configured
+ * amount of the most recently used segments is referenced strongly so they stay
+ * loaded regardless of the garbage collector.
+ * <p>
+ * The cache is not synchronized, it is guarded by the lock of its Landscape.
+ * @see LandscapeHandler#getSegmentCacheSize()
+ */
+public class SegmentCache {
+
+    private final Reference<Segment>[] references;
+    private final ReferenceQueue<Segment> queue = new ReferenceQueue<>();
+    private final boolean soft;
+
+    private final int capacity;
+    private final LinkedHashMap<Integer, Segment> recent; // strongly referenced segments in access order
+
+    // written only under the lock of the Landscape, volatile so the statistics can be read without it
+    private volatile int size;
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long evictions;
+
+    @SuppressWarnings("unchecked")
+    SegmentCache(int segments, int capacity, boolean soft) {
+        references = (Reference<Segment>[]) new Reference<?>[segments];
+        this.soft = soft;
+        this.capacity = capacity;
+        recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Segment> eldest) {
+                if(size() <= SegmentCache.this.capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns cached segment with given index.
+     * @param index index of the segment
+     * @return cached segment or null if there is none
+     */
+    @Nullable Segment get(int index) {
+        expunge();
+        final Reference<Segment> reference = references[index];
+        final Segment segment = reference != null ? reference.get() : null;
+        if(segment == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if(capacity > 0) recent.get(index);
+        return segment;
+    }
+
+    /**
+     * Returns cached segment with given index without affecting
+     * the statistics or order of the cache.
+     * @param index index of the segment
+     * @return cached segment or null if there is none
+     */
+    @Nullable Segment peek(int index) {
+        final Reference<Segment> reference = references[index];
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * Adds segment to the cache.
+     * @param index index of the segment
+     * @param segment segment
+     */
+    void put(int index, Segment segment) {
+        expunge();
+        if(references[index] == null) size++;
+        references[index] = soft ? new SoftEntry(segment, queue, index) : new WeakEntry(segment, queue, index);
+        if(capacity > 0) recent.put(index, segment);
+    }
+
+    /**
+     * Accepts all cached segments.
+     * @param consumer consumer
+     */
+    void forEach(Consumer<Segment> consumer) {
+        expunge();
+        for (Reference<Segment> reference : references) {
+            if(reference == null) continue;
+            final Segment segment = reference.get();
+            if(segment != null) consumer.accept(segment);
+        }
+    }
+
+    /**
+     * @return number of segments in the cache
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return maximum number of strongly referenced segments
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of lookups that returned cached segment
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that didn't find cached segment
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of segments no longer strongly referenced by the cache
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Removes references of segments collected by the garbage collector.
+     */
+    private void expunge() {
+        Reference<? extends Segment> reference;
+        while ((reference = queue.poll()) != null) {
+            final int index = ((Entry) reference).index();
+            if(references[index] != reference) continue;
+            references[index] = null;
+            size--;
+        }
+    }
+
+    private interface Entry {
+        int index();
+    }
+
+    private static class WeakEntry extends WeakReference<Segment> implements Entry {
+
+        private final int index;
+
+        WeakEntry(Segment referent, ReferenceQueue<Segment> queue, int index) {
+            super(referent, queue);
+            this.index = index;
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+    }
+
+    private static class SoftEntry extends SoftReference<Segment> implements Entry {
+
+        private final int index;
+
+        SoftEntry(Segment referent, ReferenceQueue<Segment> queue, int index) {
+            super(referent, queue);
+            this.index = index;
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+    }
+
+}
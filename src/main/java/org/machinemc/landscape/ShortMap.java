@@ -0,0 +1,158 @@
+package org.machinemc.landscape;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Open addressing hash map with unsigned short keys used to
+ * store sparse data of positions in a segment.
+ * <p>
+ * Arrays of the map are allocated only once the first entry is added.
+ * @param <V> type of the values
+ */
+final class ShortMap<V> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private short[] keys;
+    private Object[] values; // null marks empty slot
+    private int size;
+
+    /**
+     * @param key key
+     * @return value mapped to the key or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable V get(int key) {
+        if(size == 0) return null;
+        final int mask = values.length - 1;
+        int slot = slot(key, mask);
+        Object value;
+        while ((value = values[slot]) != null) {
+            if(Short.toUnsignedInt(keys[slot]) == key) return (V) value;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Maps the value to the key.
+     * @param key key
+     * @param value value, null removes the mapping
+     * @return previous value mapped to the key
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable V put(int key, @Nullable V value) {
+        if(value == null) return remove(key);
+        if(values == null) {
+            keys = new short[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+        } else if((size + 1) * 2 > values.length) {
+            grow();
+        }
+        final int mask = values.length - 1;
+        int slot = slot(key, mask);
+        Object previous;
+        while ((previous = values[slot]) != null) {
+            if(Short.toUnsignedInt(keys[slot]) == key) {
+                values[slot] = value;
+                return (V) previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = (short) key;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes value mapped to the key.
+     * @param key key
+     * @return removed value
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable V remove(int key) {
+        if(size == 0) return null;
+        final int mask = values.length - 1;
+        int slot = slot(key, mask);
+        Object value;
+        while ((value = values[slot]) != null) {
+            if(Short.toUnsignedInt(keys[slot]) == key) break;
+            slot = (slot + 1) & mask;
+        }
+        if(value == null) return null;
+
+        // entries following the removed one are shifted back so no lookup chain is broken
+        int gap = slot;
+        values[gap] = null;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            final int ideal = slot(Short.toUnsignedInt(keys[next]), mask);
+            if(((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                values[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        size--;
+        return (V) value;
+    }
+
+    /**
+     * @return number of entries in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries and releases the arrays of the map.
+     */
+    void clear() {
+        keys = null;
+        values = null;
+        size = 0;
+    }
+
+    /**
+     * Iterates over all entries of the map in no particular order.
+     * @param consumer consumer of the entries
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(EntryConsumer<V> consumer) {
+        if(size == 0) return;
+        for (int i = 0; i < values.length; i++) {
+            if(values[i] == null) continue;
+            consumer.accept(Short.toUnsignedInt(keys[i]), (V) values[i]);
+        }
+    }
+
+    private void grow() {
+        final short[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new short[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        final int mask = values.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if(oldValues[i] == null) continue;
+            int slot = slot(Short.toUnsignedInt(oldKeys[i]), mask);
+            while (values[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        final int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @FunctionalInterface
+    interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+}
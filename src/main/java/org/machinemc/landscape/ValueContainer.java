@@ -11,11 +11,37 @@ public interface ValueContainer {
      * @return encoded index for the container
      */
     static int index(int x, int y, int z, int dimension) {
-        final int bits = (int)(Math.log(dimension-1) / Math.log(2) + 1);
-        int index = z << (2*bits);
-        index |= y << bits;
-        index |= x;
-        return index;
+        return shiftedIndex(x, y, z, bits(dimension));
+    }
+
+    /**
+     * @param bits number of bits of a single coordinate, see {@link #bits(int)}
+     * @return encoded index for the container
+     */
+    static int shiftedIndex(int x, int y, int z, int bits) {
+        return z << (bits << 1) | y << bits | x;
+    }
+
+    /**
+     * @return encoded index for the container of blocks (16x16x16)
+     */
+    static int blockIndex(int x, int y, int z) {
+        return z << 8 | y << 4 | x;
+    }
+
+    /**
+     * @return encoded index for the container of biomes (4x4x4)
+     */
+    static int biomeIndex(int x, int y, int z) {
+        return z << 4 | y << 2 | x;
+    }
+
+    /**
+     * @param dimension dimension of the container, has to be a power of two
+     * @return number of bits of a single coordinate in encoded index
+     */
+    static int bits(int dimension) {
+        return Integer.numberOfTrailingZeros(dimension);
     }
 
     /**
@@ -27,12 +53,29 @@ public interface ValueContainer {
      */
     String get(int x, int y, int z);
 
+    /**
+     * Returns id of the value at given coordinates in the container.
+     * @param x x coordinate of the value
+     * @param y y coordinate of the value
+     * @param z z coordinate of the value
+     * @return id of the value at given coordinates
+     * @see ValueRegistry
+     */
+    int getId(int x, int y, int z);
+
     /**
      * Accepts all values in the container.
      * @param consumer consumer for all values in container
      */
     void getAll(EntryConsumer consumer);
 
+    /**
+     * Accepts ids of all values in the container.
+     * @param consumer consumer for ids of all values in container
+     * @see ValueRegistry
+     */
+    void getAllIds(IdConsumer consumer);
+
     /**
      * Changes the value at given coordinates in the container.
      * @param x x coordinate of the value
@@ -42,6 +85,16 @@ public interface ValueContainer {
      */
     void set(int x, int y, int z, String value);
 
+    /**
+     * Changes the value at given coordinates in the container.
+     * @param x x coordinate of the value
+     * @param y y coordinate of the value
+     * @param z z coordinate of the value
+     * @param id id of the new value at given coordinates
+     * @see ValueRegistry
+     */
+    void setId(int x, int y, int z, int id);
+
     /**
      * Fills the full container with single value.
      * @param value value to fill the container with
@@ -69,6 +122,22 @@ public interface ValueContainer {
      */
     void replaceAll(EntryFunction function);
 
+    /**
+     * Copies palette indices of all values in the container to the array, indices
+     * are ordered by their encoded index, see {@link #index(int, int, int, int)}.
+     * @param indices array to copy the indices to, its length has to be at least dimension^3
+     * @return palette the indices point to
+     */
+    String[] exportIndices(short[] indices);
+
+    /**
+     * Replaces all values in the container with the values of given palette, indices
+     * are ordered by their encoded index, see {@link #index(int, int, int, int)}.
+     * @param indices palette indices of the values, its length has to be at least dimension^3
+     * @param palette palette the indices point to
+     */
+    void importIndices(short[] indices, String[] palette);
+
     /**
      * @return number of entries in this container.
      */
@@ -89,7 +158,18 @@ public interface ValueContainer {
      */
     int getDimension();
 
-    ByteBuffer serialize();
+    /**
+     * @return container serialized with the palette values saved as UTF-8, see {@link PaletteCodec#UTF}
+     */
+    default ByteBuffer serialize() {
+        return serialize(PaletteCodec.UTF);
+    }
+
+    /**
+     * @param codec codec of the palette values
+     * @return serialized container
+     */
+    ByteBuffer serialize(PaletteCodec codec);
 
     /**
      * Resets the container to its initial state.
@@ -112,6 +192,14 @@ public interface ValueContainer {
         void accept(int x, int y, int z, String value);
     }
 
+    /**
+     * Special consumer of value ids used for operations with the containers.
+     */
+    @FunctionalInterface
+    interface IdConsumer {
+        void accept(int x, int y, int z, int id);
+    }
+
     /**
      * Special function used for operations with the containers.
      */
@@ -0,0 +1,202 @@
+package org.machinemc.landscape;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of canonical instances of palette values decoded
+ * from Landscape files.
+ * <p>
+ * The pool only weakly references its values so values that are no longer
+ * used by any container are removed from it, once the pool is full new
+ * values are decoded without being pooled. Recently decoded values are
+ * also looked up by their UTF-8 bytes so they are decoded without
+ * creating a new String.
+ */
+public final class ValuePool {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int CACHE_SIZE = 4096; // number of recently decoded values looked up by their bytes
+
+    private static final ValuePool GLOBAL = new ValuePool(DEFAULT_CAPACITY);
+
+    private final Map<Entry, Entry> values = new ConcurrentHashMap<>();
+    private final ReferenceQueue<String> queue = new ReferenceQueue<>();
+    private final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @return pool used by all containers
+     */
+    public static ValuePool global() {
+        return GLOBAL;
+    }
+
+    private ValuePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reads UTF-8 encoded value from the buffer and returns its canonical instance.
+     * @param buf buffer to read from, its position is moved after the value
+     * @param length number of bytes of the value
+     * @return canonical instance of the value
+     */
+    String read(ByteBuffer buf, int length) {
+        final int position = buf.position();
+        if(length < 0 || length > buf.remaining()) throw new IndexOutOfBoundsException(length);
+        buf.position(position + length);
+
+        // hash of ASCII bytes is the same as the hash of the String
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            final byte b = buf.get(position + i);
+            hash = 31 * hash + b;
+            ascii &= b >= 0;
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        final Entry cached = cache.get(slot);
+        final String recent = cached != null ? cached.get() : null;
+        if(recent != null && ascii && matches(recent, buf, position, length)) {
+            hits.increment();
+            return recent;
+        }
+
+        final byte[] utf = new byte[length];
+        buf.get(position, utf);
+        final String value = new String(utf, StandardCharsets.UTF_8);
+        final Entry entry = entry(value);
+        final String canonical = entry != null ? entry.get() : null;
+        if(canonical == null) return value;
+        cache.set(slot, entry);
+        return canonical;
+    }
+
+    /**
+     * Returns canonical instance of given value, if the value is not in the pool
+     * yet and the pool isn't full, the value becomes the canonical instance.
+     * @param value value
+     * @return canonical instance of the value
+     */
+    public String intern(String value) {
+        final Entry entry = entry(value);
+        final String canonical = entry != null ? entry.get() : null;
+        return canonical != null ? canonical : value;
+    }
+
+    /**
+     * @return number of values that have been found in the pool
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of values that have not been found in the pool
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return ratio of values that have been found in the pool, 0 if no values have been read
+     */
+    public double getHitRate() {
+        final long hits = getHits();
+        final long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Resets the hit and miss counters of the pool.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * @return number of values in the pool
+     */
+    public int size() {
+        expunge();
+        return values.size();
+    }
+
+    /**
+     * @return maximum number of values in the pool
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Entries of collected values are equal only to themselves so they are
+     * never returned until they are expunged.
+     * @param value value
+     * @return entry of the canonical instance of the value or null if the pool is full
+     */
+    private Entry entry(String value) {
+        final Entry existing = values.get(new Entry(value, null));
+        if(existing != null && existing.get() != null) {
+            hits.increment();
+            return existing;
+        }
+        misses.increment();
+        expunge();
+        if(values.size() >= capacity) return null;
+        final Entry entry = new Entry(value, queue);
+        final Entry raced = values.putIfAbsent(entry, entry);
+        return raced != null ? raced : entry;
+    }
+
+    /**
+     * Removes entries of values collected by the garbage collector.
+     */
+    private void expunge() {
+        Object reference;
+        while ((reference = queue.poll()) != null)
+            values.remove((Entry) reference, (Entry) reference);
+    }
+
+    private static boolean matches(String value, ByteBuffer buf, int position, int length) {
+        if(value.length() != length) return false;
+        for (int i = 0; i < length; i++)
+            if(value.charAt(i) != buf.get(position + i)) return false;
+        return true;
+    }
+
+    private static final class Entry extends WeakReference<String> {
+
+        private final int hash;
+
+        Entry(String value, ReferenceQueue<String> queue) {
+            super(value, queue);
+            hash = value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if(object == this) return true;
+            if(!(object instanceof Entry entry) || hash != entry.hash) return false;
+            final String value = get();
+            return value != null && value.equals(entry.get());
+        }
+
+    }
+
+}
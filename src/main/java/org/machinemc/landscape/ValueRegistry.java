@@ -0,0 +1,54 @@
+package org.machinemc.landscape;
+
+/**
+ * Registry assigning unique integer ids to values (block types and biomes)
+ * stored in the containers.
+ * <p>
+ * Ids are assigned in order of registration starting at 0 and
+ * are valid only for the lifetime of the registry.
+ */
+public final class ValueRegistry {
+
+    private static final ValueRegistry GLOBAL = new ValueRegistry();
+
+    private final IdTable table = new IdTable();
+
+    /**
+     * @return global registry used by all containers
+     */
+    public static ValueRegistry global() {
+        return GLOBAL;
+    }
+
+    private ValueRegistry() {
+    }
+
+    /**
+     * Returns id of given value, if the value is not registered yet,
+     * it is registered.
+     * @param value value
+     * @return id of the value
+     */
+    public int getId(String value) {
+        return table.getId(value);
+    }
+
+    /**
+     * Returns value registered with given id.
+     * @param id id of the value
+     * @return value
+     */
+    public String getValue(int id) {
+        final String value = table.getValue(id);
+        if(value == null) throw new IllegalArgumentException("There is no value registered with id " + id);
+        return value;
+    }
+
+    /**
+     * @return number of registered values
+     */
+    public int size() {
+        return table.size();
+    }
+
+}
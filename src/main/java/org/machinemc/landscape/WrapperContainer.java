@@ -1,38 +1,69 @@
 package org.machinemc.landscape;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jetbrains.annotations.Nullable;
 import org.machinemc.landscape.containers.*;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
 /**
  * Container that wraps around other containers and switches
  * between different implementations to ensure its size is
  * as smallest as possible but still provides all features.
+ * <p>
+ * Containers with multiple values are stored in {@link PackedContainer},
+ * {@link SmallContainer} and {@link BigContainer} are only read from files saved
+ * by older versions.
  */
 public class WrapperContainer implements ValueContainer {
 
-    private ValueContainer wrapped;
+    private ValueContainer wrapped; // read without the lock by optimistic reads
     private final int dimension;
     private final Supplier<String> defaultValue;
 
-    private final Object lock = new Object();
+    // reads are optimistic and retried under the read lock only if the container changes in the meantime
+    private final StampedLock lock = new StampedLock();
+
+    // container of the default value returned for reads of empty container
+    private volatile SingleContainer defaults;
+
+    // serialized container, cleared on each change, softly referenced so cached data of
+    // containers that are only read don't stay in memory once the memory is needed
+    private SoftReference<ByteBuffer> serialized;
+    private PaletteCodec serializedCodec;
+
+    // number of changes of the container, guarded by the lock
+    private int modifications;
+
+    // container written in the protocol format, cleared on each change, softly referenced
+    private SoftReference<byte[]> encoded;
+    private ToIntFunction<String> encodedMapping;
+    private PalettedFormat encodedFormat;
 
     public static WrapperContainer read(ByteBuffer buffer, int dimension, Supplier<String> defaultValue) throws IOException {
+        return read(buffer, dimension, defaultValue, PaletteCodec.UTF);
+    }
 
-        short size = buffer.getShort();
+    public static WrapperContainer read(ByteBuffer buffer, int dimension, Supplier<String> defaultValue, PaletteCodec codec) throws IOException {
 
-        ValueContainer wrapped;
+        int size = Short.toUnsignedInt(buffer.getShort());
 
-        if (size == 0)
+        if ((size & PackedContainer.PACKED) != 0)
+            return new WrapperContainer(PackedContainer.read(buffer, size & ~PackedContainer.PACKED, dimension, codec), dimension, defaultValue);
+        else if (size == 0)
             return new WrapperContainer(EmptyContainer.read(size), dimension, defaultValue);
         else if (size == 1)
-            return new WrapperContainer(SingleContainer.read(buffer, size, dimension), dimension, defaultValue);
+            return new WrapperContainer(SingleContainer.read(buffer, size, dimension, codec), dimension, defaultValue);
         else if (size <= 256)
-            return new WrapperContainer(SmallContainer.read(buffer, size, dimension), dimension, defaultValue);
+            return new WrapperContainer(SmallContainer.read(buffer, size, dimension, codec), dimension, defaultValue);
         else
-            return new WrapperContainer(BigContainer.read(buffer, size, dimension), dimension, defaultValue);
+            return new WrapperContainer(BigContainer.read(buffer, size, dimension, codec), dimension, defaultValue);
     }
 
     public WrapperContainer(int dimension, Supplier<String> defaultValue) {
@@ -49,89 +80,239 @@ public class WrapperContainer implements ValueContainer {
 
     @Override
     public String get(int x, int y, int z) {
-        synchronized (lock) {
-            if(wrapped instanceof EmptyContainer)
-                wrapped = new SingleContainer(defaultValue.get(), dimension);
-            return wrapped.get(x, y, z);
+        final long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                final String value = view().get(x, y, z);
+                if(lock.validate(stamp)) return value;
+            } catch (RuntimeException ignored) { } // container has been changed during the read
+        }
+        final long read = lock.readLock();
+        try {
+            return view().get(x, y, z);
+        } finally {
+            lock.unlockRead(read);
+        }
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        final long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                final int id = view().getId(x, y, z);
+                if(lock.validate(stamp)) return id;
+            } catch (RuntimeException ignored) { }
+        }
+        final long read = lock.readLock();
+        try {
+            return view().getId(x, y, z);
+        } finally {
+            lock.unlockRead(read);
         }
     }
 
     @Override
     public void getAll(EntryConsumer consumer) {
-        synchronized (lock) {
-            if(wrapped instanceof EmptyContainer)
-                wrapped = new SingleContainer(defaultValue.get(), dimension);
-            wrapped.getAll(consumer);
+        // the consumer is called without holding the lock so it can access the container
+        final SingleContainer single = single();
+        if(single != null) {
+            single.getAll(consumer);
+            return;
         }
+        final short[] indices = new short[dimension * dimension * dimension];
+        final String[] palette = exportIndices(indices);
+        final int shift = ValueContainer.bits(dimension);
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, palette[Short.toUnsignedInt(indices[ValueContainer.shiftedIndex(x, y, z, shift)])]);
+    }
+
+    @Override
+    public void getAllIds(IdConsumer consumer) {
+        final SingleContainer single = single();
+        if(single != null) {
+            single.getAllIds(consumer);
+            return;
+        }
+        final short[] indices = new short[dimension * dimension * dimension];
+        final String[] palette = exportIndices(indices);
+        final int[] ids = new int[palette.length];
+        for (int i = 0; i < palette.length; i++)
+            ids[i] = ValueRegistry.global().getId(palette[i]);
+        final int shift = ValueContainer.bits(dimension);
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, ids[Short.toUnsignedInt(indices[ValueContainer.shiftedIndex(x, y, z, shift)])]);
     }
 
     @Override
     public void set(int x, int y, int z, String value) {
-        synchronized (lock) {
-            if (wrapped instanceof EmptyContainer || wrapped instanceof SingleContainer)
-                convert(new SmallContainer(defaultValue.get(), dimension));
-            else if (getCount() >= 256)
-                convert(new BigContainer(defaultValue.get(), dimension));
+        final long stamp = lock.writeLock();
+        try {
+            if (!(wrapped instanceof PackedContainer))
+                convert(new PackedContainer(defaultValue.get(), dimension));
             wrapped.set(x, y, z, value);
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void setId(int x, int y, int z, int id) {
+        final long stamp = lock.writeLock();
+        try {
+            if (!(wrapped instanceof PackedContainer))
+                convert(new PackedContainer(defaultValue.get(), dimension));
+            wrapped.setId(x, y, z, id);
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     @Override
     public void fill(String value) {
-        synchronized (lock) {
+        final long stamp = lock.writeLock();
+        try {
             wrapped = new SingleContainer(value, dimension);
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     @Override
     public void setAll(EntrySupplier supplier) {
-        synchronized (lock) {
-            convert(new BigContainer(defaultValue.get(), dimension));
-            wrapped.setAll(supplier);
-        }
-        reduce();
+        // values are collected before the lock is acquired so the supplier can access the container
+        final String[] values = new String[dimension * dimension * dimension];
+        final int shift = ValueContainer.bits(dimension);
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    values[ValueContainer.shiftedIndex(x, y, z, shift)] = supplier.get(x, y, z);
+        setAll(values);
     }
 
     @Override
     public void replace(int x, int y, int z, String value) {
-        synchronized (lock) {
-            if (wrapped instanceof EmptyContainer || wrapped instanceof SingleContainer)
-                convert(new SmallContainer(defaultValue.get(), dimension));
-            else if (getCount() >= 256)
-                convert(new BigContainer(defaultValue.get(), dimension));
+        final long stamp = lock.writeLock();
+        try {
+            if (!(wrapped instanceof PackedContainer))
+                convert(new PackedContainer(defaultValue.get(), dimension));
             wrapped.replace(x, y, z, value);
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
+    /**
+     * Replaces all values in the container using function, the function is called
+     * without holding the lock so it can access the container, if the container
+     * changes in the meantime the function is applied again.
+     * @param function function for all values in container
+     */
     @Override
     public void replaceAll(EntryFunction function) {
-        synchronized (lock) {
-            convert(new BigContainer(defaultValue.get(), dimension));
-            wrapped.replaceAll(function);
+        final short[] indices = new short[dimension * dimension * dimension];
+        final String[] values = new String[indices.length];
+        final int shift = ValueContainer.bits(dimension);
+        while (true) {
+            final String[] palette;
+            final int expected;
+            long stamp = lock.readLock();
+            try {
+                palette = view().exportIndices(indices);
+                expected = modifications;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int x = 0; x < dimension; x++)
+                for (int y = 0; y < dimension; y++)
+                    for (int z = 0; z < dimension; z++) {
+                        final int index = ValueContainer.shiftedIndex(x, y, z, shift);
+                        values[index] = function.apply(x, y, z, palette[Short.toUnsignedInt(indices[index])]);
+                    }
+            stamp = lock.writeLock();
+            try {
+                if(modifications != expected) continue; // values have been changed in the meantime
+                replaceValues(values);
+                return;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public String[] exportIndices(short[] indices) {
+        final long stamp = lock.readLock();
+        try {
+            return view().exportIndices(indices);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void importIndices(short[] indices, String[] palette) {
+        final PackedContainer packed = new PackedContainer(defaultValue.get(), dimension);
+        packed.importIndices(indices, palette);
+        final ValueContainer imported = palette.length == 1 ? new SingleContainer(palette[0], dimension) : packed;
+        final long stamp = lock.writeLock();
+        try {
+            wrapped = imported;
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        reduce();
     }
 
     @Override
     public int getCount() {
-        synchronized (lock) {
+        final long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                final int count = wrapped.getCount();
+                if(lock.validate(stamp)) return count;
+            } catch (RuntimeException ignored) { }
+        }
+        final long read = lock.readLock();
+        try {
             return wrapped.getCount();
+        } finally {
+            lock.unlockRead(read);
         }
     }
 
     @Override
     public String[] getPalette() {
-        synchronized (lock) {
+        final long stamp = lock.readLock();
+        try {
             return wrapped.getPalette();
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
     @Override
     public int getBitsPerEntry() {
-        synchronized (lock) {
-            if (wrapped instanceof EmptyContainer)
-                wrapped = new SingleContainer(defaultValue.get(), dimension);
-            return wrapped.getBitsPerEntry();
+        final long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                final int bits = view().getBitsPerEntry();
+                if(lock.validate(stamp)) return bits;
+            } catch (RuntimeException ignored) { }
+        }
+        final long read = lock.readLock();
+        try {
+            return view().getBitsPerEntry();
+        } finally {
+            lock.unlockRead(read);
         }
     }
 
@@ -141,25 +322,155 @@ public class WrapperContainer implements ValueContainer {
     }
 
     @Override
-    public ByteBuffer serialize() {
-        synchronized (lock) {
-            reduce();
-            return wrapped.serialize();
+    public ByteBuffer serialize(PaletteCodec codec) {
+        long stamp = lock.readLock();
+        try {
+            final ByteBuffer serialized = cached(this.serialized, serializedCodec == codec);
+            if(serialized != null)
+                return serialized.duplicate();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        stamp = lock.writeLock();
+        try {
+            ByteBuffer serialized = cached(this.serialized, serializedCodec == codec);
+            if(serialized == null) {
+                reduce();
+                serialized = wrapped.serialize(codec);
+                this.serialized = new SoftReference<>(serialized);
+                serializedCodec = codec;
+            }
+            return serialized.duplicate();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     @Override
     public void reset() {
-        wrapped = new EmptyContainer();
+        final long stamp = lock.writeLock();
+        try {
+            wrapped = new EmptyContainer();
+            changed();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes the container in the protocol format to the buffer, the written
+     * data are cached until the container changes or the memory is needed and
+     * reused if the same mapping and format are used.
+     * @param buf buffer to write to
+     * @param mapping mapping of the values to the protocol ids
+     * @param format format of the container
+     */
+    public void write(ByteBuf buf, ToIntFunction<String> mapping, PalettedFormat format) {
+        byte[] encoded;
+        long stamp = lock.readLock();
+        try {
+            encoded = cached(this.encoded, encodedMapping == mapping && encodedFormat == format);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if(encoded == null) {
+            stamp = lock.writeLock();
+            try {
+                encoded = cached(this.encoded, encodedMapping == mapping && encodedFormat == format);
+                if(encoded == null) {
+                    final ByteBuf unpooled = Unpooled.buffer();
+                    format.write(view(), mapping, unpooled);
+                    encoded = new byte[unpooled.readableBytes()];
+                    unpooled.readBytes(encoded);
+                    this.encoded = new SoftReference<>(encoded);
+                    encodedMapping = mapping;
+                    encodedFormat = format;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        buf.writeBytes(encoded);
+    }
+
+    /**
+     * Replaces all values in the container.
+     * @param values new values ordered by their encoded index
+     */
+    void setAll(String[] values) {
+        final long stamp = lock.writeLock();
+        try {
+            replaceValues(values);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces all values in the container, has to be called while holding the write lock.
+     * @param values new values ordered by their encoded index
+     */
+    private void replaceValues(String[] values) {
+        if (!(wrapped instanceof PackedContainer))
+            convert(new PackedContainer(defaultValue.get(), dimension));
+        final int shift = ValueContainer.bits(dimension);
+        wrapped.setAll((x, y, z) -> values[ValueContainer.shiftedIndex(x, y, z, shift)]);
+        changed();
+        reduce();
+    }
+
+    /**
+     * @param reference cached data
+     * @param matches whether the data have been cached for the requested codec or format
+     * @return cached data or null if there are none
+     */
+    private static <T> @Nullable T cached(@Nullable SoftReference<T> reference, boolean matches) {
+        return reference != null && matches ? reference.get() : null;
+    }
+
+    /**
+     * Clears cached data of the container once it changes, has to be called while holding the write lock.
+     */
+    private void changed() {
+        serialized = null;
+        encoded = null;
+        modifications++;
+    }
+
+    /**
+     * @return wrapped container if it contains single value, single containers are
+     * never changed once wrapped so they can be read without holding the lock
+     */
+    private @Nullable SingleContainer single() {
+        final long stamp = lock.readLock();
+        try {
+            return view() instanceof SingleContainer single ? single : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the wrapped container for reads, empty container is
+     * viewed as a container filled with the default value.
+     * @return container to read from
+     */
+    private ValueContainer view() {
+        final ValueContainer wrapped = this.wrapped;
+        if(!(wrapped instanceof EmptyContainer)) return wrapped;
+        SingleContainer defaults = this.defaults;
+        if(defaults == null)
+            this.defaults = defaults = new SingleContainer(defaultValue.get(), dimension);
+        return defaults;
     }
 
     private void reduce() {
         if (wrapped instanceof ReducingContainer reducing)
             reducing.reducePalette();
-        if (wrapped.getCount() <= 256 && wrapped instanceof BigContainer)
-            convert(new SmallContainer(defaultValue.get(), dimension));
-        else if (wrapped.getCount() == 1 && !(wrapped instanceof SingleContainer))
+        if (wrapped.getCount() == 1 && !(wrapped instanceof SingleContainer))
             wrapped = new SingleContainer(wrapped.getPalette()[0], dimension);
+        else if (wrapped instanceof SmallContainer || wrapped instanceof BigContainer)
+            convert(new PackedContainer(defaultValue.get(), dimension));
     }
 
     private void convert(ValueContainer target) {
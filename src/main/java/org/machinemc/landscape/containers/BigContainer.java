@@ -2,13 +2,13 @@ package org.machinemc.landscape.containers;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import org.machinemc.landscape.PaletteCodec;
 import org.machinemc.landscape.ValueContainer;
+import org.machinemc.landscape.ValueRegistry;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Container that stores each data value as a short, its maximum palette size is 65536.
@@ -16,17 +16,16 @@ import java.util.List;
 public class BigContainer implements ReducingContainer {
 
     private String[] palette;
+    private PaletteIndex lookup; // index of the palette, null if the palette is small
     private short[] data;
     private final int dimension;
+    private final int shift; // number of bits of a single coordinate in the index
 
-    public static BigContainer read(ByteBuffer buffer, int size, int dimension) throws IOException {
-        assert size <= 256;
+    public static BigContainer read(ByteBuffer buffer, int size, int dimension, PaletteCodec codec) throws IOException {
+        assert size <= 65536;
         String[] palette = new String[size];
-        for (int i = 0; i < size; i++) {
-            byte[] utf = new byte[buffer.getInt()];
-            buffer.get(utf);
-            palette[i] = new String(utf);
-        }
+        for (int i = 0; i < size; i++)
+            palette[i] = codec.read(buffer);
         short[] data = new short[dimension*dimension*dimension];
         for (int i = 0; i < data.length; i++)
             data[i] = buffer.getShort();
@@ -37,17 +36,25 @@ public class BigContainer implements ReducingContainer {
         palette = new String[]{value};
         data = new short[dimension*dimension*dimension];
         this.dimension = dimension;
+        shift = ValueContainer.bits(dimension);
     }
 
     private BigContainer(String[] palette, short[] data, int dimension) {
         this.palette = palette.clone();
         this.data = data.clone();
         this.dimension = dimension;
+        shift = ValueContainer.bits(dimension);
+        lookup = PaletteIndex.of(this.palette);
     }
 
     @Override
     public String get(int x, int y, int z) {
-        return palette[Short.toUnsignedInt(data[ValueContainer.index(x, y, z, dimension)])];
+        return palette[Short.toUnsignedInt(data[ValueContainer.shiftedIndex(x, y, z, shift)])];
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        return ValueRegistry.global().getId(get(x, y, z));
     }
 
     @Override
@@ -60,12 +67,26 @@ public class BigContainer implements ReducingContainer {
 
     @Override
     public void set(int x, int y, int z, String value) {
-        data[ValueContainer.index(x, y, z, dimension)] = (short) getFromPalette(value);
+        data[ValueContainer.shiftedIndex(x, y, z, shift)] = (short) getFromPalette(value);
+    }
+
+    @Override
+    public void getAllIds(IdConsumer consumer) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, getId(x, y, z));
+    }
+
+    @Override
+    public void setId(int x, int y, int z, int id) {
+        set(x, y, z, ValueRegistry.global().getValue(id));
     }
 
     @Override
     public void fill(String value) {
         palette = new String[]{value};
+        lookup = null;
         data = new short[dimension*dimension*dimension];
     }
 
@@ -90,6 +111,28 @@ public class BigContainer implements ReducingContainer {
                     set(x, y, z, function.apply(x, y, z, get(x, y, z)));
     }
 
+    @Override
+    public String[] exportIndices(short[] indices) {
+        System.arraycopy(data, 0, indices, 0, data.length);
+        return palette.clone();
+    }
+
+    @Override
+    public void importIndices(short[] indices, String[] palette) {
+        if(palette.length == 0 || palette.length > 65536) throw new IllegalArgumentException();
+        final int entries = dimension*dimension*dimension;
+        if(indices.length < entries) throw new IllegalArgumentException();
+        final short[] data = new short[entries];
+        for (int i = 0; i < entries; i++) {
+            final int entry = Short.toUnsignedInt(indices[i]);
+            if(entry >= palette.length) throw new IndexOutOfBoundsException(entry);
+            data[i] = (short) entry;
+        }
+        this.palette = palette.clone();
+        lookup = PaletteIndex.of(this.palette);
+        this.data = data;
+    }
+
     @Override
     public int getCount() {
         return palette.length;
@@ -111,15 +154,13 @@ public class BigContainer implements ReducingContainer {
     }
 
     @Override
-    public ByteBuffer serialize() {
+    public ByteBuffer serialize(PaletteCodec codec) {
         reducePalette();
 
         ByteBuf unpooled = Unpooled.buffer();
         unpooled.writeShort(palette.length);
-        for (String value : palette) {
-            byte[] data = value.getBytes(StandardCharsets.UTF_8);
-            unpooled.writeInt(data.length).writeBytes(data);
-        }
+        for (String value : palette)
+            codec.write(unpooled, value);
         for (short value : data)
             unpooled.writeShort(value);
 
@@ -135,29 +176,35 @@ public class BigContainer implements ReducingContainer {
 
     @Override
     public boolean reducePalette() {
-        List<String> reduced = new ArrayList<>();
-        short[] newData = new short[dimension*dimension*dimension];
-        for (int i = 0; i < newData.length; i++) {
-            String value = palette[Short.toUnsignedInt(data[i])];
-            int index;
-            if((index = reduced.indexOf(value)) != -1) {
-                newData[i] = (byte) index;
-            } else {
-                newData[i] = (byte) reduced.size();
-                reduced.add(value);
-            }
+        // maps old palette indices to the reduced ones in order of their first occurrence
+        final int[] remap = new int[palette.length];
+        Arrays.fill(remap, -1);
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            final int entry = Short.toUnsignedInt(data[i]);
+            if(remap[entry] == -1) remap[entry] = size++;
+            data[i] = (short) remap[entry];
         }
 
-        final boolean isReduced = reduced.size() < palette.length;
-        palette = reduced.toArray(new String[0]);
-        data = newData;
+        final boolean isReduced = size < palette.length;
+        final String[] reduced = new String[size];
+        for (int i = 0; i < palette.length; i++) {
+            if(remap[i] != -1) reduced[remap[i]] = palette[i];
+        }
+        palette = reduced;
+        lookup = PaletteIndex.of(palette);
 
         return isReduced;
     }
 
     private int getFromPalette(String value) {
-        for (int i = 0; i < palette.length; i++) {
-            if(palette[i].equals(value)) return i;
+        if(lookup != null) {
+            final int index = lookup.get(value);
+            if(index != -1) return index;
+        } else {
+            for (int i = 0; i < palette.length; i++) {
+                if(palette[i].equals(value)) return i;
+            }
         }
 
         if(palette.length == 65536) {
@@ -169,6 +216,10 @@ public class BigContainer implements ReducingContainer {
         System.arraycopy(palette, 0, newPalette, 0, palette.length);
         newPalette[index] = value;
         palette = newPalette;
+        if(lookup != null)
+            lookup.put(value, index);
+        else
+            lookup = PaletteIndex.of(palette);
         return index;
     }
 
@@ -1,5 +1,6 @@
 package org.machinemc.landscape.containers;
 
+import org.machinemc.landscape.PaletteCodec;
 import org.machinemc.landscape.ValueContainer;
 
 import java.nio.ByteBuffer;
@@ -16,16 +17,31 @@ public class EmptyContainer implements ValueContainer {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public int getId(int x, int y, int z) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void getAll(EntryConsumer consumer) {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void getAllIds(IdConsumer consumer) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void set(int x, int y, int z, String value) {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void setId(int x, int y, int z, int id) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void fill(String value) {
         throw new UnsupportedOperationException();
@@ -46,6 +62,16 @@ public class EmptyContainer implements ValueContainer {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public String[] exportIndices(short[] indices) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void importIndices(short[] indices, String[] palette) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public int getCount() {
         return 0;
@@ -67,7 +93,7 @@ public class EmptyContainer implements ValueContainer {
     }
 
     @Override
-    public ByteBuffer serialize() {
+    public ByteBuffer serialize(PaletteCodec codec) {
         return ByteBuffer.allocate(2).putShort((short) 0).rewind();
     }
 
@@ -0,0 +1,356 @@
+package org.machinemc.landscape.containers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.machinemc.landscape.PaletteCodec;
+import org.machinemc.landscape.ValueContainer;
+import org.machinemc.landscape.ValueRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Container that stores data values packed in longs using as few bits per
+ * entry as its palette size allows, its maximum palette size is 65536.
+ * <p>
+ * Values that are no longer used are removed from the palette once it
+ * reaches the number of entries.
+ * <p>
+ * Entries don't span across multiple longs.
+ */
+public class PackedContainer implements ReducingContainer {
+
+    /**
+     * Flag of the palette size marking serialized packed container.
+     */
+    public static final int PACKED = 0x8000;
+
+    public static final int MAX_BITS = 16;
+
+    private String[] palette;
+    private int[] ids; // ids of the values in the palette
+    private PaletteIndex lookup; // index of the palette, null if the palette is small
+    private long[] data;
+    private int bits;
+    private int perLong; // number of entries in a single long
+    private long mask; // mask of a single entry
+    private final int dimension;
+    private final int shift; // number of bits of a single coordinate in the index
+
+    public static PackedContainer read(ByteBuffer buffer, int size, int dimension, PaletteCodec codec) throws IOException {
+        final int bits = Byte.toUnsignedInt(buffer.get());
+        String[] palette = new String[size];
+        for (int i = 0; i < size; i++)
+            palette[i] = codec.read(buffer);
+        long[] data = new long[length(dimension*dimension*dimension, bits)];
+        for (int i = 0; i < data.length; i++)
+            data[i] = buffer.getLong();
+        return new PackedContainer(palette, data, bits, dimension);
+    }
+
+    public PackedContainer(String value, int dimension) {
+        palette = new String[]{value};
+        ids = ids(palette);
+        setBits(1);
+        data = new long[length(dimension*dimension*dimension, bits)];
+        this.dimension = dimension;
+        shift = ValueContainer.bits(dimension);
+    }
+
+    private PackedContainer(String[] palette, long[] data, int bits, int dimension) {
+        this.palette = palette;
+        ids = ids(palette);
+        lookup = PaletteIndex.of(palette);
+        this.data = data;
+        setBits(bits);
+        this.dimension = dimension;
+        shift = ValueContainer.bits(dimension);
+    }
+
+    @Override
+    public String get(int x, int y, int z) {
+        return palette[getEntry(ValueContainer.shiftedIndex(x, y, z, shift))];
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        return ids[getEntry(ValueContainer.shiftedIndex(x, y, z, shift))];
+    }
+
+    @Override
+    public void getAll(EntryConsumer consumer) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, get(x, y, z));
+    }
+
+    @Override
+    public void getAllIds(IdConsumer consumer) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, getId(x, y, z));
+    }
+
+    @Override
+    public void set(int x, int y, int z, String value) {
+        final int entry = getFromPalette(value);
+        setEntry(ValueContainer.shiftedIndex(x, y, z, shift), entry);
+    }
+
+    @Override
+    public void setId(int x, int y, int z, int id) {
+        final int entry = getFromPalette(id);
+        setEntry(ValueContainer.shiftedIndex(x, y, z, shift), entry);
+    }
+
+    @Override
+    public void fill(String value) {
+        palette = new String[]{value};
+        ids = ids(palette);
+        lookup = null;
+        setBits(1);
+        data = new long[length(dimension*dimension*dimension, bits)];
+    }
+
+    @Override
+    public void setAll(EntrySupplier supplier) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    set(x, y, z, supplier.get(x, y, z));
+    }
+
+    @Override
+    public void replace(int x, int y, int z, String value) {
+        set(x, y, z, value);
+    }
+
+    @Override
+    public void replaceAll(EntryFunction function) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    set(x, y, z, function.apply(x, y, z, get(x, y, z)));
+    }
+
+    @Override
+    public String[] exportIndices(short[] indices) {
+        final int entries = dimension*dimension*dimension;
+        int index = 0;
+        for (long cell : data) {
+            for (int i = 0; i < perLong && index < entries; i++, index++) {
+                indices[index] = (short) (cell & mask);
+                cell >>>= bits;
+            }
+        }
+        return palette.clone();
+    }
+
+    @Override
+    public void importIndices(short[] indices, String[] palette) {
+        if(palette.length == 0 || palette.length > 1 << MAX_BITS) throw new IllegalArgumentException();
+        final int entries = dimension*dimension*dimension;
+        if(indices.length < entries) throw new IllegalArgumentException();
+        this.palette = palette.clone();
+        ids = ids(this.palette);
+        lookup = PaletteIndex.of(this.palette);
+        setBits(bits(this.palette.length));
+        data = new long[length(entries, bits)];
+        int index = 0;
+        for (int cell = 0; cell < data.length; cell++) {
+            long value = 0;
+            for (int i = 0; i < perLong && index < entries; i++, index++) {
+                final int entry = Short.toUnsignedInt(indices[index]);
+                if(entry >= this.palette.length) throw new IndexOutOfBoundsException(entry);
+                value |= (long) entry << (i * bits);
+            }
+            data[cell] = value;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return palette.length;
+    }
+
+    @Override
+    public String[] getPalette() {
+        return palette.clone();
+    }
+
+    @Override
+    public int getBitsPerEntry() {
+        return bits;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public ByteBuffer serialize(PaletteCodec codec) {
+        reducePalette();
+
+        ByteBuf unpooled = Unpooled.buffer();
+        unpooled.writeShort(palette.length | PACKED);
+        unpooled.writeByte(bits);
+        for (String value : palette)
+            codec.write(unpooled, value);
+        for (long value : data)
+            unpooled.writeLong(value);
+
+        ByteBuffer buf = ByteBuffer.allocate(unpooled.writerIndex());
+        unpooled.readBytes(buf);
+        return buf.rewind();
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean reducePalette() {
+        final int entries = dimension*dimension*dimension;
+        // maps old palette indices to the reduced ones in order of their first occurrence
+        final int[] remap = new int[palette.length];
+        Arrays.fill(remap, -1);
+        int size = 0;
+        int[] newData = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            final int entry = getEntry(i);
+            if(remap[entry] == -1) remap[entry] = size++;
+            newData[i] = remap[entry];
+        }
+
+        final boolean isReduced = size < palette.length;
+        final String[] reduced = new String[size];
+        final int[] reducedIds = new int[size];
+        for (int i = 0; i < palette.length; i++) {
+            if(remap[i] == -1) continue;
+            reduced[remap[i]] = palette[i];
+            reducedIds[remap[i]] = ids[i];
+        }
+        palette = reduced;
+        ids = reducedIds;
+        lookup = PaletteIndex.of(palette);
+        setBits(bits(palette.length));
+        data = new long[length(entries, bits)];
+        for (int i = 0; i < entries; i++)
+            setEntry(i, newData[i]);
+
+        return isReduced;
+    }
+
+    private int getFromPalette(String value) {
+        if(lookup != null) {
+            final int index = lookup.get(value);
+            if(index != -1) return index;
+        } else {
+            for (int i = 0; i < palette.length; i++) {
+                if(palette[i].equals(value)) return i;
+            }
+        }
+
+        // there can't be more values in use than entries, values that are no
+        // longer used are removed before the palette grows past the entries
+        if(palette.length >= Math.min(dimension*dimension*dimension, 1 << MAX_BITS)) {
+            if(!reducePalette() && palette.length == 1 << MAX_BITS) throw new UnsupportedOperationException();
+        }
+
+        int index = palette.length;
+        String[] newPalette = new String[index + 1];
+        System.arraycopy(palette, 0, newPalette, 0, palette.length);
+        newPalette[index] = value;
+        palette = newPalette;
+        int[] newIds = new int[index + 1];
+        System.arraycopy(ids, 0, newIds, 0, ids.length);
+        newIds[index] = ValueRegistry.global().getId(value);
+        ids = newIds;
+        if(lookup != null)
+            lookup.put(value, index);
+        else
+            lookup = PaletteIndex.of(palette);
+        if(bits(palette.length) > bits)
+            resize(bits(palette.length));
+        return index;
+    }
+
+    private int getFromPalette(int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if(ids[i] == id) return i;
+        }
+        return getFromPalette(ValueRegistry.global().getValue(id));
+    }
+
+    /**
+     * Changes number of bits used per entry.
+     * @param newBits new number of bits per entry
+     */
+    private void resize(int newBits) {
+        final int entries = dimension*dimension*dimension;
+        final int[] values = new int[entries];
+        for (int i = 0; i < entries; i++)
+            values[i] = getEntry(i);
+        setBits(newBits);
+        data = new long[length(entries, bits)];
+        for (int i = 0; i < entries; i++)
+            setEntry(i, values[i]);
+    }
+
+    private int getEntry(int index) {
+        final int cell = index / perLong;
+        final int offset = (index - cell * perLong) * bits;
+        return (int) ((data[cell] >>> offset) & mask);
+    }
+
+    private void setEntry(int index, int value) {
+        final int cell = index / perLong;
+        final int offset = (index - cell * perLong) * bits;
+        data[cell] = (data[cell] & ~(mask << offset)) | ((long) value << offset);
+    }
+
+    /**
+     * Changes number of bits per entry without changing the data.
+     * @param bits new number of bits per entry
+     */
+    private void setBits(int bits) {
+        this.bits = bits;
+        perLong = Long.SIZE / bits;
+        mask = (1L << bits) - 1;
+    }
+
+    /**
+     * @param palette palette
+     * @return ids of the values in the palette
+     */
+    private static int[] ids(String[] palette) {
+        final int[] ids = new int[palette.length];
+        for (int i = 0; i < palette.length; i++)
+            ids[i] = ValueRegistry.global().getId(palette[i]);
+        return ids;
+    }
+
+    /**
+     * @param size size of the palette
+     * @return number of bits required for each entry
+     */
+    private static int bits(int size) {
+        return Math.max(1, Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    /**
+     * @param entries number of entries
+     * @param bits number of bits per entry
+     * @return number of longs required to store all entries
+     */
+    private static int length(int entries, int bits) {
+        final int perLong = Long.SIZE / bits;
+        return (entries + perLong - 1) / perLong;
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.machinemc.landscape.containers;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Open addressing hash index of palette values used by containers
+ * with large palettes to find palette index of a value.
+ */
+final class PaletteIndex {
+
+    /**
+     * Palette size from which the index is used instead of linear search.
+     */
+    static final int THRESHOLD = 16;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Creates index for the palette if the palette is large enough.
+     * @param palette palette
+     * @return index for the palette or null if linear search should be used
+     */
+    static @Nullable PaletteIndex of(String[] palette) {
+        if(palette.length <= THRESHOLD) return null;
+        return new PaletteIndex(palette);
+    }
+
+    private PaletteIndex(String[] palette) {
+        int capacity = Integer.highestOneBit(palette.length) << 2;
+        keys = new String[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < palette.length; i++)
+            put(palette[i], i);
+    }
+
+    /**
+     * Returns palette index of given value.
+     * @param value value
+     * @return palette index or -1 if the value is not in the palette
+     */
+    int get(String value) {
+        final int mask = keys.length - 1;
+        int slot = hash(value) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if(key.equals(value)) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds value to the index.
+     * @param value value
+     * @param index palette index of the value
+     */
+    void put(String value, int index) {
+        if((size + 1) * 2 > keys.length)
+            grow();
+        final int mask = keys.length - 1;
+        int slot = hash(value) & mask;
+        while (keys[slot] != null)
+            slot = (slot + 1) & mask;
+        keys[slot] = value;
+        values[slot] = index;
+        size++;
+    }
+
+    private void grow() {
+        final String[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == null) continue;
+            put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(String value) {
+        final int hash = value.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+}
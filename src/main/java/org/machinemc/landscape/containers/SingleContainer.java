@@ -2,11 +2,13 @@ package org.machinemc.landscape.containers;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import org.machinemc.landscape.PaletteCodec;
 import org.machinemc.landscape.ValueContainer;
+import org.machinemc.landscape.ValueRegistry;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Container that stores only a single value, can't be modified.
@@ -14,19 +16,17 @@ import java.nio.charset.StandardCharsets;
 public class SingleContainer implements ValueContainer {
 
     private String value;
+    private int id;
     private final int dimension;
 
-    public static SingleContainer read(ByteBuffer buffer, int size, int dimension) throws IOException {
+    public static SingleContainer read(ByteBuffer buffer, int size, int dimension, PaletteCodec codec) throws IOException {
         assert size == 1;
-
-        byte[] utf = new byte[buffer.getInt()];
-        buffer.get(utf);
-
-        return new SingleContainer(new String(utf), dimension);
+        return new SingleContainer(codec.read(buffer), dimension);
     }
 
     public SingleContainer(String value, int dimension) {
         this.value = value;
+        id = ValueRegistry.global().getId(value);
         this.dimension = dimension;
     }
 
@@ -35,6 +35,11 @@ public class SingleContainer implements ValueContainer {
         return value;
     }
 
+    @Override
+    public int getId(int x, int y, int z) {
+        return id;
+    }
+
     @Override
     public void getAll(EntryConsumer consumer) {
         for (int x = 0; x < dimension; x++)
@@ -43,14 +48,28 @@ public class SingleContainer implements ValueContainer {
                     consumer.accept(x, y, z, value);
     }
 
+    @Override
+    public void getAllIds(IdConsumer consumer) {
+        for (int x = 0; x < dimension; x++)
+            for (int y = 0; y < dimension; y++)
+                for (int z = 0; z < dimension; z++)
+                    consumer.accept(x, y, z, id);
+    }
+
     @Override
     public void set(int x, int y, int z, String value) {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void setId(int x, int y, int z, int id) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void fill(String value) {
         this.value = value;
+        id = ValueRegistry.global().getId(value);
     }
 
     @Override
@@ -68,6 +87,17 @@ public class SingleContainer implements ValueContainer {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public String[] exportIndices(short[] indices) {
+        Arrays.fill(indices, 0, dimension*dimension*dimension, (short) 0);
+        return new String[]{value};
+    }
+
+    @Override
+    public void importIndices(short[] indices, String[] palette) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public int getCount() {
         return 1;
@@ -89,11 +119,10 @@ public class SingleContainer implements ValueContainer {
     }
 
     @Override
-    public ByteBuffer serialize() {
+    public ByteBuffer serialize(PaletteCodec codec) {
         ByteBuf unpooled = Unpooled.buffer();
         unpooled.writeShort(1);
-        byte[] data = value.getBytes(StandardCharsets.UTF_8);
-        unpooled.writeInt(data.length).writeBytes(data);
+        codec.write(unpooled, value);
 
         ByteBuffer buf = ByteBuffer.allocate(unpooled.writerIndex());
         unpooled.readBytes(buf);
@@ -0,0 +1,153 @@
+package org.machinemc.landscape;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void committedJournalIsAppliedWhenOpened() throws IOException {
+        final int position = commitWithoutApplying("minecraft:stone");
+
+        final Landscape landscape = open(new TestHandler());
+        assertEquals(position, landscape.table[0]);
+        assertEquals("minecraft:stone", landscape.loadSegment(0, 0, 0).getBlock(1, 2, 3));
+        assertTrue(landscape.journal.isEmpty());
+        landscape.close();
+
+        // the applied changes are saved in the look-up table of the file
+        final Landscape reopened = open(new TestHandler());
+        assertEquals(position, reopened.table[0]);
+        assertEquals("minecraft:stone", reopened.loadSegment(0, 0, 0).getBlock(1, 2, 3));
+        reopened.close();
+    }
+
+    @Test
+    public void incompleteJournalIsDiscarded() throws IOException {
+        commitWithoutApplying("minecraft:stone");
+        final File journal = new File(directory, "r_0_0.ls.journal");
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        final Landscape landscape = open(new TestHandler());
+        assertEquals("minecraft:dirt", landscape.loadSegment(0, 0, 0).getBlock(1, 2, 3));
+        landscape.close();
+    }
+
+    @Test
+    public void failedFlushKeepsLookUpTable() throws IOException {
+        final TestHandler handler = new TestHandler();
+        final Landscape landscape = open(handler);
+        for (int x = 0; x < 4; x++) {
+            final Segment segment = landscape.loadSegment(x, 0, 0);
+            segment.setBlock(0, 0, 0, "minecraft:block_" + x);
+            segment.push();
+        }
+        final int[] table = landscape.table;
+        handler.failAfter = 2;
+        assertThrows(IllegalStateException.class, landscape::flush);
+        assertSame(table, landscape.table);
+        assertTrue(landscape.journal.isEmpty());
+
+        handler.failAfter = Integer.MAX_VALUE;
+        landscape.flush();
+        final long size = landscape.channel.size();
+        landscape.close();
+
+        // space written by the failed flush is reused
+        final TestHandler control = new TestHandler();
+        final Landscape expected = new Landscape(LandscapeRegistry.of(directory), new File(directory, "r_1_0.ls"), 1, 0, (short) 32, control);
+        for (int x = 0; x < 4; x++) {
+            final Segment segment = expected.loadSegment(x, 0, 0);
+            segment.setBlock(0, 0, 0, "minecraft:block_" + x);
+            segment.push();
+        }
+        expected.flush();
+        assertEquals(expected.channel.size(), size);
+        expected.close();
+
+        final Landscape reopened = open(new TestHandler());
+        for (int x = 0; x < 4; x++)
+            assertEquals("minecraft:block_" + x, reopened.loadSegment(x, 0, 0).getBlock(0, 0, 0));
+        reopened.close();
+    }
+
+    /**
+     * Saves a block to the file and commits a journal with another block
+     * without applying it to the look-up table.
+     * @param value block saved only in the journal
+     * @return position of the segment saved in the journal
+     */
+    private int commitWithoutApplying(String value) throws IOException {
+        final Landscape landscape = open(new TestHandler());
+        final Segment segment = landscape.loadSegment(0, 0, 0);
+        segment.setBlock(1, 2, 3, "minecraft:dirt");
+        segment.push();
+        landscape.flush();
+
+        final Segment changed = new Segment(landscape, 0, segment.serialize());
+        changed.setBlock(1, 2, 3, value);
+        final ByteBuffer data = changed.serialize();
+        final ByteBuffer dictionary = landscape.dictionary.serialize(landscape.dictionary.size());
+        final long position = landscape.channel.size() + SectorAllocator.SECTOR_SIZE;
+        final long dictionaryPosition = position + SectorAllocator.SECTOR_SIZE;
+        landscape.channel.write(data.duplicate(), position);
+        landscape.channel.write(dictionary.duplicate(), dictionaryPosition);
+
+        final Journal journal = new Journal(new File(directory, "r_0_0.ls.journal"));
+        journal.add(0, (int) position, data.remaining(), null);
+        journal.add(landscape.DICTIONARY_INDEX, (int) dictionaryPosition, dictionary.remaining(), null);
+        journal.commit();
+        landscape.close();
+        return (int) position;
+    }
+
+    private Landscape open(TestHandler handler) throws IOException {
+        return new Landscape(LandscapeRegistry.of(directory), new File(directory, "r_0_0.ls"), 0, 0, (short) 32, handler);
+    }
+
+    private static class TestHandler implements LandscapeHandler {
+
+        private int failAfter = Integer.MAX_VALUE; // number of segments compressed before the compression fails
+
+        @Override
+        public String getDefaultType() {
+            return "minecraft:air";
+        }
+
+        @Override
+        public String getDefaultBiome() {
+            return "minecraft:plains";
+        }
+
+        @Override
+        public boolean isAutoSave() {
+            return false;
+        }
+
+        @Override
+        public int getAutoSaveLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public Compression getCompression() {
+            if(failAfter-- <= 0) throw new IllegalStateException("Compression failed");
+            return Compression.NONE;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.machinemc.landscape;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+import org.machinemc.landscape.containers.PackedContainer;
+import org.machinemc.landscape.containers.SingleContainer;
+
+import java.util.function.ToIntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PalettedFormatTest {
+
+    @Test
+    public void singleValueIsWrittenWithoutData() {
+        final ByteBuf buf = Unpooled.buffer();
+        PalettedFormat.BLOCKS.write(new SingleContainer("minecraft:stone", 16), value -> 300, buf);
+        // bits per entry, varint id (300), varint length of the data
+        assertArrayEquals(new byte[] {0, (byte) 0xAC, 0x02, 0}, bytes(buf));
+    }
+
+    @Test
+    public void indirectPaletteUsesMinimumBits() {
+        final PackedContainer container = new PackedContainer("minecraft:air", 16);
+        container.set(1, 0, 0, "minecraft:stone");
+        container.set(0, 1, 0, "minecraft:dirt");
+        container.set(0, 0, 1, "minecraft:stone");
+        final ToIntFunction<String> mapping = value -> switch (value) {
+            case "minecraft:air" -> 0;
+            case "minecraft:stone" -> 1;
+            case "minecraft:dirt" -> 10;
+            default -> throw new IllegalArgumentException(value);
+        };
+        final ByteBuf buf = Unpooled.buffer();
+        PalettedFormat.BLOCKS.write(container, mapping, buf);
+
+        assertEquals(4, buf.readByte()); // minimum bits of the block palette
+        assertEquals(3, buf.readByte()); // palette size
+        // palette in order of the first occurrence, entries are ordered as x | z << 4 | y << 8
+        assertEquals(0, buf.readByte());
+        assertEquals(1, buf.readByte());
+        assertEquals(10, buf.readByte());
+        assertEquals(0x80, Byte.toUnsignedInt(buf.readByte())); // varint 256 longs
+        assertEquals(0x02, buf.readByte());
+        final long[] data = longs(buf, 256);
+        final long[] expected = new long[256];
+        expected[0] = 1L << 4; // x = 1
+        expected[1] = 1; // z = 1
+        expected[16] = 2; // y = 1
+        assertArrayEquals(expected, data);
+        assertEquals(0, buf.readableBytes());
+    }
+
+    @Test
+    public void largePaletteIsWrittenDirectly() {
+        final PackedContainer container = new PackedContainer("biome_0", 4);
+        for (int i = 0; i < 64; i++)
+            container.set(i & 3, (i >> 2) & 3, i >> 4, "biome_" + (i % 9));
+        final ToIntFunction<String> mapping = value -> 20 + Integer.parseInt(value.substring(6));
+        final ByteBuf buf = Unpooled.buffer();
+        PalettedFormat.BIOMES.write(container, mapping, buf);
+
+        assertEquals(6, buf.readByte()); // direct bits of biomes, 9 values don't fit into 3 bits
+        assertEquals(7, buf.readByte()); // 10 entries per long
+        final long[] expected = new long[7];
+        for (int y = 0; y < 4; y++)
+            for (int z = 0; z < 4; z++)
+                for (int x = 0; x < 4; x++) {
+                    final int index = x | z << 2 | y << 4;
+                    final long id = 20 + (x | y << 2 | z << 4) % 9;
+                    expected[index / 10] |= id << (index % 10 * 6);
+                }
+        assertArrayEquals(expected, longs(buf, 7));
+        assertEquals(0, buf.readableBytes());
+    }
+
+    @Test
+    public void paletteIndicesAboveShortRangeAreWritten() {
+        final int dimension = 64;
+        final int entries = dimension * dimension * dimension;
+        final String[] palette = new String[40_000];
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = "value_" + i;
+        final short[] indices = new short[entries];
+        for (int i = 0; i < entries; i++)
+            indices[i] = (short) (i % palette.length);
+        final PackedContainer container = new PackedContainer("air", dimension);
+        container.importIndices(indices, palette);
+
+        final ByteBuf buf = Unpooled.buffer();
+        new PalettedFormat(1, 8, 16).write(container, value -> Integer.parseInt(value.substring(6)), buf);
+        assertEquals(16, buf.readByte());
+        buf.skipBytes(3); // varint number of longs
+        final long[] data = longs(buf, entries / 4);
+        // entry at x = 0, y = 0, z = 9 has palette index 9 << 12 = 36864
+        assertEquals(36864, (data[9 << 6 >> 2] & 0xFFFF));
+    }
+
+    private static byte[] bytes(ByteBuf buf) {
+        final byte[] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return data;
+    }
+
+    private static long[] longs(ByteBuf buf, int length) {
+        final long[] data = new long[length];
+        for (int i = 0; i < length; i++)
+            data[i] = buf.readLong();
+        return data;
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.machinemc.landscape;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SectorAllocatorTest {
+
+    private static final int SECTOR = SectorAllocator.SECTOR_SIZE;
+
+    @Test
+    public void dataDontCrossSectorBoundary() {
+        assertEquals(0, SectorAllocator.place(0, SECTOR + 1)); // longer data start at the beginning of a sector
+        assertEquals(4000, SectorAllocator.place(4000, SECTOR - 4000));
+        assertEquals(SECTOR, SectorAllocator.place(4000, SECTOR - 4000 + 1));
+        assertEquals(SECTOR, SectorAllocator.place(4000, SECTOR));
+        assertEquals(2 * SECTOR, SectorAllocator.place(2 * SECTOR, 10));
+    }
+
+    @Test
+    public void allocateReusesFreeSpace() {
+        final SectorAllocator allocator = new SectorAllocator(100);
+        assertEquals(100, allocator.allocate(50));
+        assertEquals(150, allocator.getEnd());
+
+        // space before the next sector is left free
+        assertEquals(SECTOR, allocator.allocate(SECTOR));
+        assertEquals(2 * SECTOR, allocator.getEnd());
+        assertEquals(SECTOR - 150, allocator.getFree());
+
+        assertEquals(150, allocator.allocate(100));
+        assertEquals(SECTOR - 250, allocator.getFree());
+        assertEquals(250, allocator.allocate(SECTOR - 250));
+        assertEquals(0, allocator.getFree());
+        assertEquals(2 * SECTOR, allocator.allocate(10));
+    }
+
+    @Test
+    public void freeMergesExtents() {
+        final SectorAllocator allocator = new SectorAllocator(0);
+        final long first = allocator.allocate(1000);
+        final long second = allocator.allocate(1000);
+        final long third = allocator.allocate(1000);
+        allocator.allocate(1000);
+
+        allocator.free(first, 1000);
+        allocator.free(third, 1000);
+        assertEquals(2000, allocator.getFree());
+        // fits only once the extents around the second data are merged
+        allocator.free(second, 1000);
+        assertEquals(3000, allocator.getFree());
+        assertEquals(0, allocator.allocate(3000));
+        assertEquals(0, allocator.getFree());
+    }
+
+    @Test
+    public void freeAtEndShrinksAllocatedSpace() {
+        final SectorAllocator allocator = new SectorAllocator(100);
+        allocator.allocate(50);
+        final long position = allocator.allocate(SECTOR);
+        allocator.allocate(100);
+
+        allocator.free(position, SECTOR);
+        assertEquals(250, allocator.getEnd());
+        assertEquals(0, allocator.getFree());
+        allocator.free(150, 100);
+        allocator.free(100, 50);
+        assertEquals(100, allocator.getEnd());
+    }
+
+    @Test
+    public void rebuildFromTable() {
+        final SectorAllocator allocator = new SectorAllocator(100);
+        allocator.allocate(SECTOR * 4);
+        final int[] table = {
+                SECTOR, SECTOR | 2 << Landscape.COMPRESSION_SHIFT, // compression id is not part of the length
+                100, 50 | 1 << Landscape.COMPRESSION_SHIFT,
+                0, 0, // missing segment
+                3 * SECTOR, 200
+        };
+        allocator.rebuild(table);
+        assertEquals(3 * SECTOR + 200, allocator.getEnd());
+        assertEquals(SECTOR - 150 + SECTOR, allocator.getFree());
+
+        assertEquals(150, allocator.allocate(SECTOR - 150));
+        assertEquals(2 * SECTOR, allocator.allocate(SECTOR));
+        assertEquals(0, allocator.getFree());
+    }
+
+}
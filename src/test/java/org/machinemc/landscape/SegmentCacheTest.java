@@ -0,0 +1,120 @@
+package org.machinemc.landscape;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentCacheTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void lookupsAreCounted() throws IOException {
+        final Landscape landscape = open();
+        final SegmentCache cache = new SegmentCache(16, 4, false);
+        assertNull(cache.get(0));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        final Segment segment = new Segment(landscape, 0);
+        cache.put(0, segment);
+        assertEquals(1, cache.getSize());
+        assertSame(segment, cache.get(0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // replaced segment doesn't change the size
+        final Segment replaced = new Segment(landscape, 0);
+        cache.put(0, replaced);
+        assertEquals(1, cache.getSize());
+        assertSame(replaced, cache.get(0));
+        landscape.close();
+    }
+
+    @Test
+    public void peekDoesNotChangeStatistics() throws IOException {
+        final Landscape landscape = open();
+        final SegmentCache cache = new SegmentCache(16, 4, false);
+        final Segment segment = new Segment(landscape, 3);
+        cache.put(3, segment);
+        assertSame(segment, cache.peek(3));
+        assertNull(cache.peek(4));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        landscape.close();
+    }
+
+    @Test
+    public void leastRecentlyUsedSegmentsAreEvicted() throws IOException {
+        final Landscape landscape = open();
+        final SegmentCache cache = new SegmentCache(16, 2, true);
+        assertEquals(2, cache.getCapacity());
+        final List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Segment segment = new Segment(landscape, i);
+            segments.add(segment);
+            cache.put(i, segment);
+        }
+        assertEquals(1, cache.getEvictions());
+        // evicted segment stays in the cache while it is referenced
+        assertEquals(3, cache.getSize());
+        assertSame(segments.get(0), cache.get(0));
+
+        cache.put(3, new Segment(landscape, 3));
+        assertEquals(2, cache.getEvictions());
+        landscape.close();
+    }
+
+    @Test
+    public void forEachAcceptsCachedSegments() throws IOException {
+        final Landscape landscape = open();
+        final SegmentCache cache = new SegmentCache(16, 0, false);
+        final List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 16; i += 5) {
+            final Segment segment = new Segment(landscape, i);
+            segments.add(segment);
+            cache.put(i, segment);
+        }
+        final List<Segment> accepted = new ArrayList<>();
+        cache.forEach(accepted::add);
+        assertEquals(segments, accepted);
+        assertEquals(0, cache.getEvictions());
+        landscape.close();
+    }
+
+    private Landscape open() throws IOException {
+        return new Landscape(LandscapeRegistry.of(directory), new File(directory, "r_0_0.ls"), 0, 0, (short) 32, new TestHandler());
+    }
+
+    private static class TestHandler implements LandscapeHandler {
+
+        @Override
+        public String getDefaultType() {
+            return "minecraft:air";
+        }
+
+        @Override
+        public String getDefaultBiome() {
+            return "minecraft:plains";
+        }
+
+        @Override
+        public boolean isAutoSave() {
+            return false;
+        }
+
+        @Override
+        public int getAutoSaveLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+    }
+
+}
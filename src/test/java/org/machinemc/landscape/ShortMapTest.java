@@ -0,0 +1,84 @@
+package org.machinemc.landscape;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShortMapTest {
+
+    @Test
+    public void putGetRemove() {
+        final ShortMap<String> map = new ShortMap<>();
+        assertNull(map.get(0));
+        assertNull(map.remove(0));
+
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(65535, "b"));
+        assertEquals("a", map.get(1));
+        assertEquals("b", map.get(65535));
+        assertEquals(2, map.size());
+
+        assertEquals("a", map.put(1, "c"));
+        assertEquals("c", map.get(1));
+        assertEquals(2, map.size());
+
+        assertEquals("c", map.put(1, null));
+        assertNull(map.get(1));
+        assertEquals("b", map.remove(65535));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void clearAndForEach() {
+        final ShortMap<Integer> map = new ShortMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put(i * 7, i);
+        final Map<Integer, Integer> entries = new HashMap<>();
+        map.forEach(entries::put);
+        assertEquals(100, entries.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, entries.get(i * 7));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(7));
+        map.forEach((key, value) -> fail("map is empty"));
+        assertNull(map.put(7, 1));
+        assertEquals(1, map.get(7));
+    }
+
+    @Test
+    public void removalKeepsLookupChains() {
+        // random operations over a small key range so the chains of colliding keys are long
+        final Random random = new Random(42);
+        final ShortMap<Integer> map = new ShortMap<>();
+        final Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            final int key = random.nextInt(64) == 0 ? 65535 : random.nextInt(i < 100_000 ? 4096 : 96);
+            if(random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = 0; key < 4096; key++)
+            assertEquals(expected.get(key), map.get(key), "key " + key);
+        assertEquals(expected.get(65535), map.get(65535));
+
+        for (int key : expected.keySet().toArray(new Integer[0])) {
+            if((key & 1) == 0) continue;
+            assertEquals(expected.remove(key), map.remove(key));
+        }
+        for (int key = 0; key < 4096; key++)
+            assertEquals(expected.get(key), map.get(key), "key " + key);
+        final Map<Integer, Integer> entries = new HashMap<>();
+        map.forEach(entries::put);
+        assertEquals(expected, entries);
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.machinemc.landscape.containers;
+
+import org.junit.jupiter.api.Test;
+import org.machinemc.landscape.PaletteCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackedContainerTest {
+
+    @Test
+    public void bitsGrowWithPalette() {
+        final PackedContainer container = new PackedContainer("value_0", 16);
+        assertEquals(1, container.getBitsPerEntry());
+        for (int bits = 1; bits <= 12; bits++) {
+            // the first palette size that needs given number of bits
+            final int size = bits == 1 ? 2 : (1 << (bits - 1)) + 1;
+            for (int i = container.getCount(); i < size; i++)
+                container.set(i & 15, (i >> 4) & 15, i >> 8, "value_" + i);
+            assertEquals(size, container.getCount());
+            assertEquals(bits, container.getBitsPerEntry(), "palette of " + size + " values");
+            for (int i = 0; i < size; i++)
+                assertEquals("value_" + i, container.get(i & 15, (i >> 4) & 15, i >> 8));
+        }
+    }
+
+    @Test
+    public void importedIndicesArePacked() {
+        final int dimension = 64;
+        final int entries = dimension * dimension * dimension;
+        for (int bits = 1; bits <= 16; bits++) {
+            final String[] palette = palette(bits == 1 ? 2 : (1 << (bits - 1)) + 1);
+            final short[] indices = indices(entries, palette.length);
+            final PackedContainer container = new PackedContainer("air", dimension);
+            container.importIndices(indices, palette);
+            assertEquals(bits, container.getBitsPerEntry());
+
+            final short[] exported = new short[entries];
+            assertArrayEquals(palette, container.exportIndices(exported));
+            for (int i = 0; i < entries; i++)
+                assertEquals(Short.toUnsignedInt(indices[i]), Short.toUnsignedInt(exported[i]), "entry " + i + " with " + bits + " bits");
+            assertEquals(palette[Short.toUnsignedInt(indices[3 | 5 << 6 | 7 << 12])], container.get(3, 5, 7));
+        }
+    }
+
+    @Test
+    public void serializedContainerIsReadBack() throws IOException {
+        final int dimension = 32;
+        final int entries = dimension * dimension * dimension;
+        // size of the serialized palette is limited to 15 bits
+        for (int bits = 1; bits <= 15; bits++) {
+            final String[] palette = palette(bits == 1 ? 2 : (1 << (bits - 1)) + 1);
+            final short[] indices = indices(entries, palette.length);
+            final PackedContainer container = new PackedContainer("air", dimension);
+            container.importIndices(indices, palette);
+
+            final ByteBuffer buf = container.serialize(PaletteCodec.UTF);
+            final int size = Short.toUnsignedInt(buf.getShort());
+            assertTrue((size & PackedContainer.PACKED) != 0);
+            final PackedContainer read = PackedContainer.read(buf, size & ~PackedContainer.PACKED, dimension, PaletteCodec.UTF);
+            assertEquals(0, buf.remaining());
+            assertEquals(bits, read.getBitsPerEntry());
+
+            final short[] exported = new short[entries];
+            final String[] readPalette = read.exportIndices(exported);
+            for (int i = 0; i < entries; i++)
+                assertEquals(palette[Short.toUnsignedInt(indices[i])], readPalette[Short.toUnsignedInt(exported[i])]);
+        }
+    }
+
+    @Test
+    public void reducePaletteRemovesUnusedValues() {
+        final PackedContainer container = new PackedContainer("air", 16);
+        for (int i = 0; i < 300; i++)
+            container.set(i & 15, (i >> 4) & 15, i >> 8, "value_" + i);
+        assertEquals(9, container.getBitsPerEntry());
+        container.fill("air");
+        for (int i = 0; i < 3; i++)
+            container.set(i, 0, 0, "value_" + i);
+        // values overwritten by fill are no longer in the palette
+        assertEquals(4, container.getCount());
+
+        for (int i = 0; i < 300; i++)
+            container.set(i & 15, (i >> 4) & 15, i >> 8, "value_" + i);
+        for (int i = 3; i < 300; i++)
+            container.set(i & 15, (i >> 4) & 15, i >> 8, "air");
+        assertTrue(container.reducePalette());
+        assertEquals(4, container.getCount());
+        assertEquals(2, container.getBitsPerEntry());
+        assertFalse(container.reducePalette());
+        for (int i = 0; i < 3; i++)
+            assertEquals("value_" + i, container.get(i, 0, 0));
+        assertEquals("air", container.get(15, 15, 15));
+    }
+
+    @Test
+    public void paletteIsReducedOnceItReachesEntries() {
+        final PackedContainer container = new PackedContainer("air", 4);
+        for (int i = 0; i < 1000; i++)
+            container.set(i & 3, (i >> 2) & 3, (i >> 4) & 3, "value_" + i);
+        // the replaced value is still used while the new one is added
+        assertTrue(container.getCount() <= 64 + 1);
+        assertTrue(container.getBitsPerEntry() <= 7);
+        for (int i = 1000 - 64; i < 1000; i++)
+            assertEquals("value_" + i, container.get(i & 3, (i >> 2) & 3, (i >> 4) & 3));
+    }
+
+    private static String[] palette(int size) {
+        final String[] palette = new String[size];
+        for (int i = 0; i < size; i++)
+            palette[i] = "value_" + i;
+        return palette;
+    }
+
+    /**
+     * @param entries number of entries
+     * @param size size of the palette
+     * @return indices using all values of the palette in order of their first occurrence
+     */
+    private static short[] indices(int entries, int size) {
+        final short[] indices = new short[entries];
+        for (int i = 0; i < entries; i++)
+            indices[i] = (short) (i < size ? i : (i * 31) % size);
+        return indices;
+    }
+
+}